@@ -0,0 +1,285 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.protobuf.ByteString;
+import surfstore.BlockStorage.StoredBlock;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Bounded block cache that keeps block contents off-heap in direct buffers.
+ *
+ * The buffers are arenas of up to 16 MB, each allocated when it is first
+ * needed and never freed, so the cache holds at most "capacity" bytes of
+ * direct memory however many blocks come and go. Each block takes a
+ * power-of-two slot in an arena, handed out by a buddy allocator: an
+ * evicted block's slot is merged with its free buddy and reused. As a slot
+ * may be reused as soon as its block is evicted, get() returns a copy of
+ * the block.
+ *
+ * Eviction is segmented LRU: new blocks enter a probation segment and are
+ * only promoted to the protected segment when they are read again, so a
+ * single pass over many cold blocks cannot flush the hot set.
+ */
+public final class BlockCache
+{
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final int MIN_ORDER = 9; // 512-byte slots
+    private static final int MAX_ARENA_ORDER = 24; // 16 MB arenas
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final int arenaOrder;
+    private final ByteBuffer[] arenas; // allocated as they are first needed
+    // Free slots by order, as addresses: arena number << arenaOrder | offset
+    private final List<HashSet<Long>> free = new ArrayList<HashSet<Long>>();
+
+    private static final class Entry
+    {
+        final long address;
+        final int order;
+        final int length;
+        final Compression compression;
+
+        Entry(long address, int order, int length, Compression compression)
+        {
+            this.address = address;
+            this.order = order;
+            this.length = length;
+            this.compression = compression;
+        }
+
+        long size()
+        {
+            return 1L << order;
+        }
+    }
+
+    // Both maps are in access order, eldest entry first
+    private final LinkedHashMap<String, Entry> probation;
+    private final LinkedHashMap<String, Entry> protectedSegment;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public BlockCache(long capacity)
+    {
+        this.capacity = capacity;
+        this.protectedCapacity = (long)(capacity * PROTECTED_FRACTION);
+        this.probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        arenaOrder = Math.max(MIN_ORDER, Math.min(MAX_ARENA_ORDER, 63 - Long.numberOfLeadingZeros(capacity)));
+        arenas = new ByteBuffer[(int)(capacity >> arenaOrder)];
+        for(int order=0; order <= arenaOrder; ++order)
+        {
+            free.add(new HashSet<Long>());
+        }
+        for(long arena=0; arena < arenas.length; ++arena)
+        {
+            free.get(arenaOrder).add(arena << arenaOrder);
+        }
+    }
+
+    // Returns a copy of the cached block, or null on a miss
+    public StoredBlock get(String hash)
+    {
+        synchronized(this)
+        {
+            Entry entry = protectedSegment.get(hash);
+            if(entry == null)
+            {
+                entry = probation.remove(hash);
+                if(entry != null)
+                {
+                    probationBytes -= entry.size();
+                    protectedSegment.put(hash, entry);
+                    protectedBytes += entry.size();
+                    demoteProtected();
+                }
+            }
+            if(entry != null)
+            {
+                hits.incrementAndGet();
+                return new StoredBlock(ByteString.copyFrom(slot(entry.address, entry.length)), entry.compression);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String hash, StoredBlock block)
+    {
+        int length = block.data.size();
+        int order = Math.max(MIN_ORDER, 64 - Long.numberOfLeadingZeros(Math.max(1, length) - 1));
+        if(arenaOrder < order || capacity - protectedCapacity < 1L << order)
+        {
+            return; // would not even fit in probation
+        }
+        long address;
+        synchronized(this)
+        {
+            if(protectedSegment.containsKey(hash) || probation.containsKey(hash))
+            {
+                return;
+            }
+            address = allocate(order);
+            if(address < 0)
+            {
+                return; // the other slots are all being filled
+            }
+        }
+        // No entry has the slot yet, so it cannot be evicted while it is filled
+        block.data.copyTo(slot(address, length));
+        synchronized(this)
+        {
+            if(protectedSegment.containsKey(hash) || probation.containsKey(hash))
+            {
+                release(address, order);
+                return;
+            }
+            probation.put(hash, new Entry(address, order, length, block.compression));
+            probationBytes += 1L << order;
+        }
+    }
+
+    public synchronized void invalidate(String hash)
+    {
+        Entry entry = probation.remove(hash);
+        if(entry != null)
+        {
+            probationBytes -= entry.size();
+            release(entry.address, entry.order);
+        }
+        entry = protectedSegment.remove(hash);
+        if(entry != null)
+        {
+            protectedBytes -= entry.size();
+            release(entry.address, entry.order);
+        }
+    }
+
+    // Moves the least recently used protected blocks back to probation
+    private void demoteProtected()
+    {
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while(protectedCapacity < protectedBytes && it.hasNext())
+        {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().size();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().size();
+        }
+    }
+
+    // A free slot of 2^order bytes, evicting blocks until one is free;
+    // probation goes first. -1 if there are no more blocks to evict.
+    private long allocate(int order)
+    {
+        while(true)
+        {
+            for(int k=order; k <= arenaOrder; ++k)
+            {
+                Iterator<Long> it = free.get(k).iterator();
+                if(it.hasNext())
+                {
+                    long address = it.next();
+                    it.remove();
+                    while(order < k)
+                    {
+                        --k;
+                        free.get(k).add(address + (1L << k));
+                    }
+                    int arena = (int)(address >> arenaOrder);
+                    if(arenas[arena] == null)
+                    {
+                        arenas[arena] = ByteBuffer.allocateDirect(1 << arenaOrder);
+                    }
+                    return address;
+                }
+            }
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<String, Entry>> it = segment.entrySet().iterator();
+            if(!it.hasNext())
+            {
+                return -1;
+            }
+            Entry eldest = it.next().getValue();
+            it.remove();
+            if(segment == probation)
+            {
+                probationBytes -= eldest.size();
+            }
+            else
+            {
+                protectedBytes -= eldest.size();
+            }
+            release(eldest.address, eldest.order);
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Frees a slot, merged with its buddy as long as that is free too
+    private void release(long address, int order)
+    {
+        while(order < arenaOrder && free.get(order).remove(address ^ (1L << order)))
+        {
+            address &= ~(1L << order);
+            ++order;
+        }
+        free.get(order).add(address);
+    }
+
+    // The arena was allocated, under the lock, before the slot was handed out
+    private ByteBuffer slot(long address, int length)
+    {
+        ByteBuffer slot = arenas[(int)(address >> arenaOrder)].duplicate();
+        int offset = (int)(address & ((1L << arenaOrder) - 1));
+        slot.limit(offset + length).position(offset);
+        return slot;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public synchronized long getSize()
+    {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    @Override
+    public String toString()
+    {
+        long h = getHits();
+        long m = getMisses();
+        double hitRate = (h + m) == 0 ? 0.0 : (double)h / (h + m);
+        return String.format("BlockCache[size=%d/%d bytes, hits=%d, misses=%d, evictions=%d, hitRate=%.3f]",
+                getSize(), capacity, h, m, getEvictions(), hitRate);
+    }
+}
@@ -0,0 +1,230 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits files into blocks, either at fixed offsets or content-defined
+ * with FastCDC.
+ *
+ * FastCDC rolls a Gear hash over the data and cuts where the hash has a
+ * run of zero bits, so block boundaries move with the content: inserting
+ * a byte only changes the blocks around the edit instead of shifting every
+ * block after it. Normalized chunking uses a stricter mask before the
+ * average size and a looser one after it, which keeps sizes close to the
+ * average. Min, average and max sizes are part of the spec, and the Gear
+ * table is fixed, so every client with the same spec cuts the same way.
+ *
+ * Specs are "fixed SIZE" or "fastcdc MIN AVG MAX", as in the config file.
+ * Blocks are named with the chunker's BlockHash, SHA-256 unless
+ * withHash() says otherwise.
+ */
+public final class BlockChunker
+{
+    public static final String DEFAULT_SPEC = "fixed 4096";
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024; // blocks must fit well within a gRPC message
+    private static final long MAP_WINDOW = 64L * 1024 * 1024; // files are mapped this much at a time
+
+    private static final long[] GEAR = gearTable();
+
+    private final boolean contentDefined;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskS; // before the average size
+    private final long maskL; // after it
+    private final BlockHash hash;
+
+    private BlockChunker(boolean contentDefined, int minSize, int avgSize, int maxSize, BlockHash hash)
+    {
+        this.contentDefined = contentDefined;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        this.hash = hash;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        // The high bits of the hash depend on the most bytes, so the masks use those
+        this.maskS = -1L << (64 - bits - 2);
+        this.maskL = -1L << (64 - bits + 2);
+    }
+
+    public static BlockChunker fixed(int size)
+    {
+        if(size <= 0 || MAX_BLOCK_SIZE < size)
+        {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE);
+        }
+        return new BlockChunker(false, size, size, size, BlockHash.SHA256);
+    }
+
+    public static BlockChunker fastCdc(int minSize, int avgSize, int maxSize)
+    {
+        if(Integer.bitCount(avgSize) != 1 || avgSize < 256)
+        {
+            throw new IllegalArgumentException("Average block size must be a power of two of at least 256");
+        }
+        if(minSize <= 0 || avgSize <= minSize || maxSize <= avgSize || MAX_BLOCK_SIZE < maxSize)
+        {
+            throw new IllegalArgumentException("Block sizes must satisfy 0 < min < avg < max <= " + MAX_BLOCK_SIZE);
+        }
+        return new BlockChunker(true, minSize, avgSize, maxSize, BlockHash.SHA256);
+    }
+
+    public static BlockChunker parse(String spec)
+    {
+        String[] parts = spec.trim().split("\\s+");
+        try
+        {
+            if(parts.length == 2 && "fixed".equals(parts[0]))
+            {
+                return fixed(Integer.parseInt(parts[1]));
+            }
+            if(parts.length == 4 && "fastcdc".equals(parts[0]))
+            {
+                return fastCdc(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            // reported below
+        }
+        throw new IllegalArgumentException("Chunking must be \"fixed SIZE\" or \"fastcdc MIN AVG MAX\": " + spec);
+    }
+
+    // The same chunker, naming blocks with "hash"
+    public BlockChunker withHash(BlockHash hash)
+    {
+        return new BlockChunker(contentDefined, minSize, avgSize, maxSize, hash);
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    // The name of a block with these bytes
+    public String hash(ByteBuffer data)
+    {
+        return hash.name(data);
+    }
+
+    // Length of the block starting at "off", given "len" bytes from there on.
+    // Unless the input ends within them, "len" must be at least getMaxSize().
+    public int cut(ByteBuffer buf, int off, int len)
+    {
+        if(len <= minSize)
+        {
+            return len;
+        }
+        int n = Math.min(len, maxSize);
+        if(!contentDefined)
+        {
+            return n;
+        }
+        int normal = Math.min(avgSize, n);
+        long fp = 0;
+        int i = minSize;
+        for(; i < normal; ++i)
+        {
+            fp = (fp << 1) + GEAR[buf.get(off + i) & 0xff];
+            if((fp & maskS) == 0)
+            {
+                return i + 1;
+            }
+        }
+        for(; i < n; ++i)
+        {
+            fp = (fp << 1) + GEAR[buf.get(off + i) & 0xff];
+            if((fp & maskL) == 0)
+            {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    public Scanner scanner(FileChannel channel) throws IOException
+    {
+        return new Scanner(channel, 0);
+    }
+
+    // Splits the file from "start" on, which must be where a block starts
+    public Scanner scanner(FileChannel channel, long start) throws IOException
+    {
+        return new Scanner(channel, start);
+    }
+
+    // Splits a file block by block without copying it onto the heap: the
+    // file is mapped a window at a time and blocks are views of the mapping
+    public final class Scanner
+    {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer map;
+        private long mapStart;
+        private long offset; // of the block returned last
+        private long position;
+
+        private Scanner(FileChannel channel, long start) throws IOException
+        {
+            this.channel = channel;
+            this.size = channel.size();
+            this.offset = start;
+            this.position = start;
+        }
+
+        // Returns the next block as a read-only view of the file, or null at
+        // the end of it. The view stays valid after later calls.
+        public ByteBuffer next() throws IOException
+        {
+            if(position == size)
+            {
+                return null;
+            }
+            long mapEnd = map == null ? 0 : mapStart + map.capacity();
+            if(map == null || (mapEnd < position + maxSize && mapEnd < size))
+            {
+                mapStart = position;
+                map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(MAP_WINDOW, size - mapStart));
+            }
+            int start = (int)(position - mapStart);
+            int length = cut(map, start, map.capacity() - start);
+            ByteBuffer block = map.duplicate();
+            block.limit(start + length).position(start);
+            offset = position;
+            position += length;
+            return block.slice().asReadOnlyBuffer();
+        }
+
+        // File offset of the block next() returned last
+        public long getOffset()
+        {
+            return offset;
+        }
+    }
+
+    // The spec, and the hash unless it is the default
+    @Override
+    public String toString()
+    {
+        String spec = contentDefined ? "fastcdc " + minSize + " " + avgSize + " " + maxSize : "fixed " + maxSize;
+        return hash == BlockHash.SHA256 ? spec : spec + " " + hash;
+    }
+
+    // SplitMix64 from a fixed seed: the table must be the same for every client
+    private static long[] gearTable()
+    {
+        long[] table = new long[256];
+        long x = 0x5375726653746f72L;
+        for(int i=0; i < table.length; ++i)
+        {
+            long z = (x += 0x9e3779b97f4a7c15L);
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,456 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import surfstore.SurfStoreBasic.AnswerList;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.BlockList;
+import surfstore.SurfStoreBasic.HashList;
+
+/**
+ * Client side of a sharded BlockStore: one channel per block server from
+ * the config file, and a consistent-hash ring that decides which server
+ * owns each block.
+ *
+ * Every server is placed on the ring at VIRTUAL_NODES pseudo-random
+ * points, and a block belongs to the first point at or after its hash.
+ * Adding a server therefore only takes over about 1/N of the blocks,
+ * spread evenly over the existing servers; BlockRebalancer moves them.
+ */
+public final class BlockCluster
+{
+    public static final int HAS_BLOCKS_BATCH = 16384; // hashes per HasBlocks call, about 750 KB
+    public static final int BATCH_BYTES = 1024 * 1024; // stays well below the 4 MB gRPC message limit
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> ring;
+    private final ManagedChannel[] channels;
+    private final BlockStoreGrpc.BlockStoreBlockingStub[] stubs;
+    private final BlockStoreGrpc.BlockStoreStub[] asyncStubs;
+    private final BlockStoreGrpc.BlockStoreFutureStub[] futureStubs;
+
+    public BlockCluster(ConfigReader config)
+    {
+        int n = config.getNumBlockServers();
+        ring = buildRing(n);
+        channels = new ManagedChannel[n];
+        stubs = new BlockStoreGrpc.BlockStoreBlockingStub[n];
+        asyncStubs = new BlockStoreGrpc.BlockStoreStub[n];
+        futureStubs = new BlockStoreGrpc.BlockStoreFutureStub[n];
+        for(int i=0; i < n; ++i)
+        {
+            channels[i] = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort(i + 1)).usePlaintext(true).build();
+            stubs[i] = BlockStoreGrpc.newBlockingStub(channels[i]);
+            asyncStubs[i] = BlockStoreGrpc.newStub(channels[i]);
+            futureStubs[i] = BlockStoreGrpc.newFutureStub(channels[i]);
+        }
+    }
+
+    // Number of block servers; they are numbered 1 to size()
+    public int size()
+    {
+        return stubs.length;
+    }
+
+    public int nodeFor(String hash)
+    {
+        return nodeFor(ring, hash);
+    }
+
+    public BlockStoreGrpc.BlockStoreBlockingStub stub(int node)
+    {
+        return stubs[node - 1];
+    }
+
+    public BlockStoreGrpc.BlockStoreStub asyncStub(int node)
+    {
+        return asyncStubs[node - 1];
+    }
+
+    public BlockStoreGrpc.BlockStoreBlockingStub stubFor(String hash)
+    {
+        return stub(nodeFor(hash));
+    }
+
+    // Answers come back in the order of the hashes
+    public boolean[] hasBlocks(List<String> hashes)
+    {
+        boolean[] answers = new boolean[hashes.size()];
+        List<List<Integer>> byNode = partition(hashes);
+        for(int node=1; node <= size(); ++node)
+        {
+            List<Integer> indexes = byNode.get(node - 1);
+            for(int start=0; start < indexes.size(); start += HAS_BLOCKS_BATCH)
+            {
+                int end = Math.min(start + HAS_BLOCKS_BATCH, indexes.size());
+                HashList.Builder query = HashList.newBuilder();
+                for(int i=start; i < end; ++i)
+                {
+                    query.addHashes(hashes.get(indexes.get(i)));
+                }
+                AnswerList result = stub(node).hasBlocks(query.build());
+                for(int i=start; i < end; ++i)
+                {
+                    answers[indexes.get(i)] = result.getAnswers(i - start);
+                }
+            }
+        }
+        return answers;
+    }
+
+    // Sends each block to its owner, BATCH_BYTES at a time
+    public void storeBlocks(List<Block> blocks)
+    {
+        BlockList.Builder[] batches = new BlockList.Builder[size()];
+        int[] batchBytes = new int[size()];
+        for(Block block : blocks)
+        {
+            int node = nodeFor(block.getHash());
+            BlockList.Builder batch = batches[node - 1];
+            if(batch != null && BATCH_BYTES < batchBytes[node - 1] + block.getData().size())
+            {
+                stub(node).storeBlocks(batch.build());
+                batch = null;
+            }
+            if(batch == null)
+            {
+                batch = BlockList.newBuilder();
+                batches[node - 1] = batch;
+                batchBytes[node - 1] = 0;
+            }
+            batch.addBlocks(block);
+            batchBytes[node - 1] += block.getData().size();
+        }
+        for(int node=1; node <= size(); ++node)
+        {
+            if(batches[node - 1] != null)
+            {
+                stub(node).storeBlocks(batches[node - 1].build());
+            }
+        }
+    }
+
+    // Removes each block from the server that owns it
+    public void deleteBlocks(List<String> hashes)
+    {
+        List<List<Integer>> byNode = partition(hashes);
+        for(int node=1; node <= size(); ++node)
+        {
+            List<Integer> indexes = byNode.get(node - 1);
+            for(int start=0; start < indexes.size(); start += HAS_BLOCKS_BATCH)
+            {
+                HashList.Builder query = HashList.newBuilder();
+                for(int i=start; i < Math.min(start + HAS_BLOCKS_BATCH, indexes.size()); ++i)
+                {
+                    query.addHashes(hashes.get(indexes.get(i)));
+                }
+                stub(node).deleteBlocks(query.build());
+            }
+        }
+    }
+
+    // Gets fetched blocks as they arrive: in any order, and possibly on
+    // several threads at once
+    public interface BlockReceiver
+    {
+        void receive(int index, Block block) throws IOException;
+    }
+
+    // Fetches blocks through GetBlocks calls of up to "batchBlocks" blocks
+    // each, taking turns between the servers, with at most "maxInFlight"
+    // calls outstanding. Each block goes to "receiver" as soon as its call
+    // completes, with its position in "hashes". Returns once every block
+    // was received; the first failure stops further calls and is thrown.
+    public void fetchBlocks(List<String> hashes, boolean acceptCompressed, int batchBlocks, int maxInFlight,
+            final BlockReceiver receiver) throws IOException, InterruptedException
+    {
+        List<List<Integer>> byNode = partition(hashes);
+        final Semaphore window = new Semaphore(maxInFlight);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        boolean more = true;
+        for(int start=0; more && failure.get() == null; start += batchBlocks)
+        {
+            more = false;
+            for(int node=1; node <= size() && failure.get() == null; ++node)
+            {
+                List<Integer> indexes = byNode.get(node - 1);
+                if(indexes.size() <= start)
+                {
+                    continue;
+                }
+                more = true;
+                final List<Integer> batch = indexes.subList(start, Math.min(start + batchBlocks, indexes.size()));
+                HashList.Builder query = HashList.newBuilder().setAcceptCompressed(acceptCompressed);
+                for(int i : batch)
+                {
+                    query.addHashes(hashes.get(i));
+                }
+                window.acquire();
+                Futures.addCallback(futureStubs[node - 1].getBlocks(query.build()), new FutureCallback<BlockList>() {
+                    @Override
+                    public void onSuccess(BlockList blocks) {
+                        try {
+                            for (int j = 0; j < batch.size(); ++j) {
+                                receiver.receive(batch.get(j), blocks.getBlocks(j));
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            window.release();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failure.compareAndSet(null, t);
+                        window.release();
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+        window.acquire(maxInFlight); // every call has finished
+        window.release(maxInFlight);
+        Throwable t = failure.get();
+        if(t instanceof IOException)
+        {
+            throw (IOException)t;
+        }
+        if(t != null)
+        {
+            throw Status.fromThrowable(t).asRuntimeException();
+        }
+    }
+
+    // Fetches blocks in the order of the hashes through GetBlocks calls on
+    // the future stubs. The hashes are cut into segments of "batchBlocks";
+    // each segment is one call per server that owns any of its blocks.
+    // Segments are requested ahead of the caller with at most "maxInFlight"
+    // calls outstanding, so every server works on its share at once while
+    // memory stays bounded.
+    public Iterator<Block> getBlocks(final List<String> hashes, final boolean acceptCompressed,
+            final int batchBlocks, final int maxInFlight)
+    {
+        return new Iterator<Block>() {
+            private final ArrayDeque<FetchSegment> pending = new ArrayDeque<FetchSegment>();
+            private int next = 0;
+            private int requested = 0;
+            private int inFlight = 0;
+            private FetchSegment upcoming;
+
+            @Override
+            public boolean hasNext() {
+                return next < hashes.size();
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                while (requested < hashes.size()) {
+                    if (upcoming == null) {
+                        upcoming = new FetchSegment(hashes, requested,
+                                Math.min(requested + batchBlocks, hashes.size()), acceptCompressed);
+                    }
+                    if (!pending.isEmpty() && maxInFlight < inFlight + upcoming.callCount()) {
+                        break;
+                    }
+                    upcoming.start();
+                    pending.add(upcoming);
+                    inFlight += upcoming.callCount();
+                    requested = upcoming.end;
+                    upcoming = null;
+                }
+                FetchSegment head = pending.peek();
+                Block block = head.await()[next - head.start];
+                if (++next == head.end) {
+                    pending.poll();
+                    inFlight -= head.callCount();
+                }
+                return block;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private final class FetchSegment
+    {
+        final int start;
+        final int end;
+        private final List<String> hashes;
+        private final boolean acceptCompressed;
+        private final List<List<Integer>> byNode;
+        private final List<ListenableFuture<BlockList>> calls = new ArrayList<ListenableFuture<BlockList>>();
+        private Block[] blocks;
+
+        FetchSegment(List<String> hashes, int start, int end, boolean acceptCompressed)
+        {
+            this.hashes = hashes;
+            this.start = start;
+            this.end = end;
+            this.acceptCompressed = acceptCompressed;
+            this.byNode = partition(hashes.subList(start, end));
+        }
+
+        int callCount()
+        {
+            int count = 0;
+            for(List<Integer> indexes : byNode)
+            {
+                count += indexes.isEmpty() ? 0 : 1;
+            }
+            return count;
+        }
+
+        void start()
+        {
+            for(int node=1; node <= size(); ++node)
+            {
+                List<Integer> indexes = byNode.get(node - 1);
+                if(indexes.isEmpty())
+                {
+                    calls.add(null);
+                    continue;
+                }
+                HashList.Builder query = HashList.newBuilder().setAcceptCompressed(acceptCompressed);
+                for(int i : indexes)
+                {
+                    query.addHashes(hashes.get(start + i));
+                }
+                calls.add(futureStubs[node - 1].getBlocks(query.build()));
+            }
+        }
+
+        Block[] await()
+        {
+            if(blocks != null)
+            {
+                return blocks;
+            }
+            Block[] result = new Block[end - start];
+            try
+            {
+                for(int node=1; node <= size(); ++node)
+                {
+                    if(calls.get(node - 1) == null)
+                    {
+                        continue;
+                    }
+                    BlockList list = calls.get(node - 1).get();
+                    List<Integer> indexes = byNode.get(node - 1);
+                    for(int j=0; j < indexes.size(); ++j)
+                    {
+                        result[indexes.get(j)] = list.getBlocks(j);
+                    }
+                }
+            }
+            catch(ExecutionException e)
+            {
+                throw Status.fromThrowable(e.getCause()).asRuntimeException();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withCause(e).asRuntimeException();
+            }
+            blocks = result;
+            return blocks;
+        }
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        for(ManagedChannel channel : channels)
+        {
+            channel.shutdown();
+        }
+        for(ManagedChannel channel : channels)
+        {
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Positions of the hashes owned by each server, in their original order
+    private List<List<Integer>> partition(List<String> hashes)
+    {
+        List<List<Integer>> byNode = new ArrayList<List<Integer>>();
+        for(int node=1; node <= size(); ++node)
+        {
+            byNode.add(new ArrayList<Integer>());
+        }
+        for(int i=0; i < hashes.size(); ++i)
+        {
+            byNode.get(nodeFor(hashes.get(i)) - 1).add(i);
+        }
+        return byNode;
+    }
+
+    static TreeMap<Long, Integer> buildRing(int nodes)
+    {
+        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        for(int node=1; node <= nodes; ++node)
+        {
+            for(int v=0; v < VIRTUAL_NODES; ++v)
+            {
+                ring.put(prefix(sha256("block" + node + "-" + v)), node);
+            }
+        }
+        return ring;
+    }
+
+    static int nodeFor(TreeMap<Long, Integer> ring, String hash)
+    {
+        // Block hashes are already uniform, so their first 8 bytes are the ring position
+        byte[] digest = BlockIndex.decodeHash(hash);
+        long point = prefix(digest != null ? digest : sha256(hash));
+        Map.Entry<Long, Integer> owner = ring.ceilingEntry(point);
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static byte[] sha256(String s)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long prefix(byte[] b)
+    {
+        long x = 0;
+        for(int i=0; i < 8; ++i)
+        {
+            x = (x << 8) | (b[i] & 0xff);
+        }
+        return x;
+    }
+}
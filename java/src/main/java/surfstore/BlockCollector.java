@@ -0,0 +1,136 @@
+package surfstore;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import io.grpc.StatusRuntimeException;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.HashList;
+
+/**
+ * Background garbage collector for blocks no file references anymore.
+ *
+ * Once a second it claims at most "blocksPerSecond" blocks that have been
+ * unreferenced for the grace period and deletes them from their block
+ * servers. The grace period covers clients that uploaded blocks but have
+ * not yet called ModifyFile. Every "sweepInterval" it also lists all block
+ * servers, so blocks that were uploaded and never used get collected too.
+ *
+ * All of this runs on one timer thread; RPC handlers only ever wait for
+ * the BlockReferences lock, never for a block server.
+ */
+public final class BlockCollector
+{
+    private static final Logger logger = Logger.getLogger(BlockCollector.class.getName());
+    private static final long TICK = 1000;
+
+    private final BlockReferences references;
+    private final BlockCluster cluster;
+    private final long gracePeriod;
+    private final int blocksPerSecond;
+    private final long sweepInterval;
+    private final AtomicLong collected = new AtomicLong();
+    private Timer timer;
+
+    // Times are in milliseconds; a sweep interval of 0 disables sweeps
+    public BlockCollector(BlockReferences references, BlockCluster cluster, long gracePeriod,
+            int blocksPerSecond, long sweepInterval)
+    {
+        if(blocksPerSecond <= 0)
+        {
+            throw new IllegalArgumentException("Collection rate must be positive");
+        }
+        this.references = references;
+        this.cluster = cluster;
+        this.gracePeriod = gracePeriod;
+        this.blocksPerSecond = blocksPerSecond;
+        this.sweepInterval = sweepInterval;
+    }
+
+    public synchronized void start()
+    {
+        timer = new Timer("BlockCollector", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                collect();
+            }
+        }, TICK, TICK);
+        if(0 < sweepInterval)
+        {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, sweepInterval, sweepInterval);
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if(timer != null)
+        {
+            timer.cancel();
+        }
+    }
+
+    public long getCollected()
+    {
+        return collected.get();
+    }
+
+    // Deletes one tick's worth of expired blocks
+    void collect()
+    {
+        List<String> claimed = references.claim(System.currentTimeMillis() - gracePeriod, blocksPerSecond);
+        if(claimed.isEmpty())
+        {
+            return;
+        }
+        boolean deleted = false;
+        try
+        {
+            cluster.deleteBlocks(claimed);
+            deleted = true;
+        }
+        catch(StatusRuntimeException e)
+        {
+            logger.warning("Could not delete unreferenced blocks: " + e.getStatus());
+        }
+        finally
+        {
+            references.release(claimed, deleted);
+        }
+        if(deleted)
+        {
+            collected.addAndGet(claimed.size());
+            logger.info("Collected " + claimed.size() + " unreferenced blocks, " + references.getUnreferencedCount() + " waiting");
+        }
+    }
+
+    void sweep()
+    {
+        for(int node=1; node <= cluster.size(); ++node)
+        {
+            try
+            {
+                Iterator<HashList> pages = cluster.stub(node).listBlocks(Empty.newBuilder().build());
+                while(pages.hasNext())
+                {
+                    for(String hash : pages.next().getHashesList())
+                    {
+                        references.found(hash);
+                    }
+                }
+            }
+            catch(StatusRuntimeException e)
+            {
+                logger.warning("Could not list blocks of block" + node + ": " + e.getStatus());
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Per-block compression for the BlockStore and its clients.
+ *
+ * A compressed block is the uncompressed length as a 4-byte big-endian
+ * integer followed by a raw deflate stream; no block inflates to more
+ * than BlockChunker.MAX_BLOCK_SIZE. Before compressing, the byte
+ * entropy of a small sample is estimated, so blocks that are already
+ * compressed or encrypted are stored as they are without paying for a
+ * deflate pass.
+ */
+public final class BlockCompressor
+{
+    private static final int SAMPLE_SIZE = 512;
+    private static final double MAX_ENTROPY = 7.0; // bits per byte; random data is close to 8
+    private static final double MIN_SAVING = 0.125;
+
+    private static final ThreadLocal<Deflater> fastDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Deflater> bestDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private BlockCompressor()
+    {
+    }
+
+    public static Compression parse(String name)
+    {
+        if("none".equals(name))
+        {
+            return Compression.NONE;
+        }
+        if("fast".equals(name))
+        {
+            return Compression.DEFLATE_FAST;
+        }
+        if("best".equals(name))
+        {
+            return Compression.DEFLATE_BEST;
+        }
+        throw new IllegalArgumentException("Unknown compression: " + name);
+    }
+
+    // Compresses a raw block with the preferred codec if the block looks
+    // compressible and actually shrinks; otherwise keeps it raw
+    public static BlockStorage.StoredBlock compress(ByteString data, Compression preferred)
+    {
+        if(preferred == Compression.NONE || data.size() < 64 || MAX_ENTROPY < sampleEntropy(data))
+        {
+            return new BlockStorage.StoredBlock(data, Compression.NONE);
+        }
+        Deflater deflater = preferred == Compression.DEFLATE_FAST ? fastDeflater.get() : bestDeflater.get();
+        deflater.reset();
+        deflater.setInput(data.toByteArray());
+        deflater.finish();
+        int limit = (int)(data.size() * (1 - MIN_SAVING));
+        byte[] out = new byte[limit];
+        ByteBuffer.wrap(out).putInt(data.size());
+        int written = 4;
+        while(!deflater.finished() && written < limit)
+        {
+            written += deflater.deflate(out, written, limit - written);
+        }
+        if(!deflater.finished())
+        {
+            return new BlockStorage.StoredBlock(data, Compression.NONE); // not worth it
+        }
+        return new BlockStorage.StoredBlock(ByteString.copyFrom(out, 0, written), preferred);
+    }
+
+    public static ByteString decompress(ByteString data, Compression compression)
+    {
+        if(compression == Compression.NONE)
+        {
+            return data;
+        }
+        if(compression != Compression.DEFLATE_FAST && compression != Compression.DEFLATE_BEST)
+        {
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+        byte[] in = data.toByteArray();
+        int length = in.length < 4 ? -1 : ByteBuffer.wrap(in).getInt();
+        if(length < 0 || BlockChunker.MAX_BLOCK_SIZE < length)
+        {
+            throw new IllegalArgumentException("Compressed block has a bad length: " + length);
+        }
+        byte[] out = new byte[length];
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(in, 4, in.length - 4);
+        try
+        {
+            int read = 0;
+            while(read < length && !inf.finished())
+            {
+                int n = inf.inflate(out, read, length - read);
+                if(n == 0 && (inf.needsInput() || inf.needsDictionary()))
+                {
+                    break;
+                }
+                read += n;
+            }
+            if(read != length)
+            {
+                throw new IllegalArgumentException("Compressed block is truncated");
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new IllegalArgumentException("Compressed block is corrupt", e);
+        }
+        return UnsafeByteOperations.unsafeWrap(out);
+    }
+
+    // Shannon entropy in bits per byte over a sample from the start of the block
+    private static double sampleEntropy(ByteString data)
+    {
+        int n = Math.min(SAMPLE_SIZE, data.size());
+        int[] counts = new int[256];
+        for(int i=0; i < n; ++i)
+        {
+            ++counts[data.byteAt(i) & 0xff];
+        }
+        double entropy = 0;
+        for(int count : counts)
+        {
+            if(count != 0)
+            {
+                double p = (double)count / n;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,454 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * Writes a file from its blocklist. Blocks that a LocalIndex knows a local
+ * copy of are copied from that file; the rest are fetched from the block
+ * servers.
+ *
+ * When the FileInfo carries block sizes, every block's offset is known up
+ * front: the file is preallocated, up to "maxInFlight" GetBlocks calls run
+ * at once, and each block is written at its offset as soon as its call
+ * returns, in whatever order the calls finish. A block that occurs more
+ * than once is fetched once. Without sizes, blocks are fetched ahead of
+ * the writer but written in blocklist order.
+ *
+ * The file is written next to the target and renamed over it once it is
+ * complete: the target is never left half written, and its own blocks can
+ * be reused while it is being replaced.
+ *
+ * Downloads with block sizes can be resumed. Every CHECKPOINT_BYTES the
+ * partial file is forced to disk and the blocks written so far are
+ * recorded in a journal next to it, under the version and blocklist being
+ * written. A failed download leaves both behind; downloading the same
+ * version again only fetches what is missing, while a download of any
+ * other version starts over.
+ */
+public final class BlockDownloader
+{
+    private final BlockCluster cluster;
+    private final BlockChunker chunker;
+    private final int maxInFlight;
+
+    private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024; // written between checkpoints
+
+    public BlockDownloader(BlockCluster cluster, BlockChunker chunker, int maxInFlight)
+    {
+        this.cluster = cluster;
+        this.chunker = chunker;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    // Writes "target" and returns where its blocks are
+    public FileBlocks download(FileInfo info, File target, LocalIndex localIndex) throws IOException, InterruptedException
+    {
+        File part = new File(target.getParentFile(), LocalIndex.PREFIX + target.getName() + ".part");
+        TransferJournal journal = null;
+        String key = journalKey(info);
+        if(key != null)
+        {
+            journal = TransferJournal.open(new File(target.getParentFile(), LocalIndex.PREFIX + target.getName() + ".download"),
+                    key);
+        }
+        LocalFiles localFiles = new LocalFiles(localIndex);
+        FileBlocks written;
+        boolean done = false;
+        try
+        {
+            RandomAccessFile output = new RandomAccessFile(part, "rw");
+            try
+            {
+                if(journal != null)
+                {
+                    written = writeAtOffsets(info, output, localFiles, journal);
+                }
+                else
+                {
+                    output.setLength(0);
+                    written = writeInOrder(info.getBlocklistList(), output.getChannel(), localFiles);
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        }
+        finally
+        {
+            localFiles.close();
+            boolean resumable = journal != null && !journal.isEmpty();
+            if(journal != null)
+            {
+                if(done || !resumable)
+                {
+                    journal.delete();
+                }
+                else
+                {
+                    journal.close(); // kept with the partial file for the next attempt
+                }
+            }
+            if(!done && !resumable)
+            {
+                part.delete();
+            }
+        }
+        return written;
+    }
+
+    // Writes bytes "offset" to "offset + length" of a file to "output", given
+    // the blocks holding them, which start at "blocksOffset" in the file.
+    // Only those blocks are fetched. A length of 0 reads to the end of the
+    // file. Returns how many bytes were read.
+    public long readRange(FileInfo blocks, long blocksOffset, long offset, long length, RandomAccessFile output)
+            throws IOException, InterruptedException
+    {
+        if(blocks.getBlockSizesCount() != blocks.getBlocklistCount())
+        {
+            throw new IOException(blocks.getFilename() + " has no block sizes");
+        }
+        final long end = length <= 0 || Long.MAX_VALUE - offset < length ? Long.MAX_VALUE : offset + length;
+        final long[] starts = new long[blocks.getBlocklistCount()];
+        final LinkedHashMap<String, List<Integer>> wanted = new LinkedHashMap<String, List<Integer>>();
+        long position = blocksOffset;
+        long read = 0;
+        for(int i=0; i < blocks.getBlocklistCount(); ++i)
+        {
+            starts[i] = position;
+            position += blocks.getBlockSizes(i);
+            if(offset < position && starts[i] < end)
+            {
+                List<Integer> positions = wanted.get(blocks.getBlocklist(i));
+                if(positions == null)
+                {
+                    positions = new ArrayList<Integer>(1);
+                    wanted.put(blocks.getBlocklist(i), positions);
+                }
+                positions.add(i);
+                read = Math.min(position, end) - offset;
+            }
+        }
+        output.setLength(read);
+
+        final FileChannel channel = output.getChannel();
+        final FileInfo info = blocks;
+        final long from = offset;
+        final List<String> hashes = new ArrayList<String>(wanted.keySet());
+        int batchBlocks = Math.max(1, BlockCluster.BATCH_BYTES / chunker.getMaxSize());
+        cluster.fetchBlocks(hashes, true, batchBlocks, maxInFlight, new BlockCluster.BlockReceiver() {
+            @Override
+            public void receive(int index, Block block) throws IOException {
+                String hash = hashes.get(index);
+                if (!hash.equals(block.getHash())) {
+                    throw new IOException("Block " + hash + " is missing");
+                }
+                ByteBuffer data = BlockCompressor.decompress(block.getData(), block.getCompression()).asReadOnlyByteBuffer();
+                for (int i : wanted.get(hash)) {
+                    checkSize(hash, data, info.getBlockSizes(i));
+                    // Only the part of the block inside the range
+                    ByteBuffer part = data.duplicate();
+                    int skip = (int)Math.max(0, from - starts[i]);
+                    part.position(skip).limit((int)Math.min(part.limit(), end - starts[i]));
+                    write(channel, part, starts[i] + skip - from);
+                }
+            }
+        });
+        return read;
+    }
+
+    // Names what is being written; a journal of another version or
+    // blocklist does not describe the partial file. The blocklist is hashed
+    // as its raw digests and sizes. Null if there can be no journal, as the
+    // block sizes are not known or the blocklist has no block names.
+    private static String journalKey(FileInfo info)
+    {
+        if(info.getBlockSizesCount() == 0 || info.getBlockSizesCount() != info.getBlocklistCount())
+        {
+            return null;
+        }
+        byte[] digests = BlockHash.pack(info.getBlocklistList());
+        if(digests == null)
+        {
+            return null;
+        }
+        ByteBuffer blocks = ByteBuffer.allocate(digests.length + 4 * info.getBlockSizesCount());
+        blocks.put(digests);
+        for(int size : info.getBlockSizesList())
+        {
+            blocks.putInt(size);
+        }
+        blocks.flip();
+        return "download " + info.getFilename() + " " + info.getVersion() + " " + BlockHash.SHA256.name(blocks);
+    }
+
+    private FileBlocks writeAtOffsets(final FileInfo info, RandomAccessFile file, LocalFiles localFiles,
+            TransferJournal journal) throws IOException, InterruptedException
+    {
+        final FileChannel output = file.getChannel();
+        FileBlocks written = new FileBlocks();
+        final long[] offsets = new long[info.getBlocklistCount()];
+        long size = 0;
+        for(int i=0; i < info.getBlocklistCount(); ++i)
+        {
+            offsets[i] = size;
+            written.add(info.getBlocklist(i), size, info.getBlockSizes(i));
+            size += info.getBlockSizes(i);
+        }
+        BitSet resumed = resume(journal, written, file.length() == size);
+        file.setLength(size);
+
+        final Checkpoints checkpoints = new Checkpoints(output, journal, written);
+        boolean complete = false;
+        try
+        {
+            fetch(info, output, offsets, resumed, localFiles, checkpoints);
+            complete = true;
+        }
+        finally
+        {
+            // Also makes the file durable before it is renamed over the target
+            try
+            {
+                checkpoints.flush();
+            }
+            catch(IOException e)
+            {
+                if(complete)
+                {
+                    throw e;
+                }
+            }
+        }
+        return written;
+    }
+
+    // The blocks earlier attempts wrote, if the partial file is still theirs
+    private static BitSet resume(TransferJournal journal, FileBlocks blocks, boolean sizeMatches)
+    {
+        BitSet resumed = new BitSet(blocks.size());
+        FileBlocks done = journal.getBlocks();
+        if(!sizeMatches)
+        {
+            journal.reset();
+            return resumed;
+        }
+        long[] offsets = new long[blocks.size()];
+        for(int i=0; i < blocks.size(); ++i)
+        {
+            offsets[i] = blocks.getOffset(i);
+        }
+        for(int j=0; j < done.size(); ++j)
+        {
+            int i = Arrays.binarySearch(offsets, done.getOffset(j));
+            if(0 <= i && done.getHash(j).equals(blocks.getHash(i)) && done.getLength(j) == blocks.getLength(i))
+            {
+                resumed.set(i);
+            }
+        }
+        return resumed;
+    }
+
+    private void fetch(final FileInfo info, final FileChannel output, final long[] offsets, BitSet resumed,
+            LocalFiles localFiles, final Checkpoints checkpoints) throws IOException, InterruptedException
+    {
+        // Remote blocks by hash, with every position they go to
+        final LinkedHashMap<String, List<Integer>> remote = new LinkedHashMap<String, List<Integer>>();
+        for(int i=0; i < info.getBlocklistCount(); ++i)
+        {
+            if(resumed.get(i))
+            {
+                continue;
+            }
+            String hash = info.getBlocklist(i);
+            ByteBuffer data = localFiles.read(hash);
+            if(data == null)
+            {
+                List<Integer> positions = remote.get(hash);
+                if(positions == null)
+                {
+                    positions = new ArrayList<Integer>(1);
+                    remote.put(hash, positions);
+                }
+                positions.add(i);
+                continue;
+            }
+            checkSize(hash, data, info.getBlockSizes(i));
+            write(output, data, offsets[i]);
+            checkpoints.written(i);
+        }
+
+        final List<String> hashes = new ArrayList<String>(remote.keySet());
+        int batchBlocks = Math.max(1, BlockCluster.BATCH_BYTES / chunker.getMaxSize());
+        cluster.fetchBlocks(hashes, true, batchBlocks, maxInFlight, new BlockCluster.BlockReceiver() {
+            @Override
+            public void receive(int index, Block block) throws IOException {
+                String hash = hashes.get(index);
+                if (!hash.equals(block.getHash())) {
+                    throw new IOException("Block " + hash + " is missing");
+                }
+                ByteBuffer data = BlockCompressor.decompress(block.getData(), block.getCompression()).asReadOnlyByteBuffer();
+                for (int i : remote.get(hash)) {
+                    checkSize(hash, data, info.getBlockSizes(i));
+                    write(output, data.duplicate(), offsets[i]);
+                    checkpoints.written(i);
+                }
+            }
+        });
+    }
+
+    private FileBlocks writeInOrder(List<String> blocklist, FileChannel output, LocalFiles localFiles) throws IOException
+    {
+        FileBlocks written = new FileBlocks();
+        List<String> missing = new ArrayList<String>();
+        for(String hash : blocklist)
+        {
+            if(localFiles.index.find(hash) == null)
+            {
+                missing.add(hash);
+            }
+        }
+        // Remote blocks arrive in blocklist order, fetched from every block server at once
+        int batchBlocks = Math.max(1, BlockCluster.BATCH_BYTES / chunker.getMaxSize());
+        Iterator<Block> remoteBlocks = cluster.getBlocks(missing, true, batchBlocks, maxInFlight);
+        long offset = 0;
+        for(String hash : blocklist)
+        {
+            ByteBuffer data = localFiles.read(hash);
+            if(data == null)
+            {
+                Block block = remoteBlocks.next();
+                if(!hash.equals(block.getHash()))
+                {
+                    throw new IOException("Block " + hash + " is missing");
+                }
+                data = BlockCompressor.decompress(block.getData(), block.getCompression()).asReadOnlyByteBuffer();
+            }
+            written.add(hash, offset, data.remaining());
+            offset += write(output, data, offset);
+        }
+        return written;
+    }
+
+    private static void checkSize(String hash, ByteBuffer data, int size) throws IOException
+    {
+        if(data.remaining() != size)
+        {
+            throw new IOException("Block " + hash + " has " + data.remaining() + " bytes instead of " + size);
+        }
+    }
+
+    // Positional writes leave the channel's position alone, so blocks can
+    // be written from several threads at once
+    private static int write(FileChannel output, ByteBuffer data, long offset) throws IOException
+    {
+        int length = data.remaining();
+        long position = offset;
+        while(data.hasRemaining())
+        {
+            position += output.write(data, position);
+        }
+        return length;
+    }
+
+    // Records written blocks in the journal once they are on disk, a
+    // checkpoint at a time. Blocks are written from several threads.
+    private static final class Checkpoints
+    {
+        private final FileChannel output;
+        private final TransferJournal journal;
+        private final FileBlocks blocks;
+        private FileBlocks pending = new FileBlocks();
+        private long pendingBytes;
+
+        Checkpoints(FileChannel output, TransferJournal journal, FileBlocks blocks)
+        {
+            this.output = output;
+            this.journal = journal;
+            this.blocks = blocks;
+        }
+
+        synchronized void written(int i) throws IOException
+        {
+            pending.add(blocks.getHash(i), blocks.getOffset(i), blocks.getLength(i));
+            pendingBytes += blocks.getLength(i);
+            if(CHECKPOINT_BYTES <= pendingBytes)
+            {
+                flush();
+            }
+        }
+
+        synchronized void flush() throws IOException
+        {
+            output.force(false);
+            journal.record(pending, 0, pending.size());
+            pending = new FileBlocks();
+            pendingBytes = 0;
+        }
+    }
+
+    // Local copies of blocks, read through one open channel per file
+    private static final class LocalFiles
+    {
+        final LocalIndex index;
+        private final HashMap<File, FileChannel> channels = new HashMap<File, FileChannel>();
+
+        LocalFiles(LocalIndex index)
+        {
+            this.index = index;
+        }
+
+        // The block's bytes, or null if there is no local copy
+        ByteBuffer read(String hash) throws IOException
+        {
+            LocalIndex.Location local = index.find(hash);
+            if(local == null)
+            {
+                return null;
+            }
+            FileChannel channel = channels.get(local.file);
+            if(channel == null)
+            {
+                channel = FileChannel.open(local.file.toPath());
+                channels.put(local.file, channel);
+            }
+            ByteBuffer data = FileBlocks.read(channel, local.offset, local.length);
+            if(!BlockHash.matches(hash, data))
+            {
+                throw new IOException(local.file + " changed during the download");
+            }
+            return data;
+        }
+
+        void close()
+        {
+            for(FileChannel channel : channels.values())
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch(IOException e)
+                {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package surfstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Scalable Bloom filter over 256-bit block digests.
+ *
+ * The filter is a chain of plain Bloom filters. Blocks are added to the
+ * newest one; once it holds its capacity, a new filter with twice the
+ * capacity and half the false-positive rate is appended, so the overall
+ * rate stays below the configured one however many blocks are stored.
+ *
+ * Digests are already uniformly distributed, so the bit positions are
+ * derived from two of their words (double hashing) instead of rehashing.
+ * Bits are set with compare-and-set and lookups take no lock.
+ */
+public final class BlockFilter
+{
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final double TIGHTENING = 0.5;
+
+    private final double falsePositiveRate;
+    private volatile Stage[] stages;
+    private final Object growLock = new Object();
+
+    private static final class Stage
+    {
+        final AtomicLongArray bits;
+        final long bitCount;
+        final int hashes;
+        final int capacity;
+        final AtomicInteger size = new AtomicInteger();
+
+        Stage(int capacity, double falsePositiveRate)
+        {
+            this.capacity = capacity;
+            double ln2 = Math.log(2);
+            long m = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+            this.bitCount = (m + 63) & ~63L;
+            this.hashes = Math.max(1, (int)Math.round((double)bitCount / capacity * ln2));
+            this.bits = new AtomicLongArray((int)(bitCount >>> 6));
+        }
+
+        boolean mightContain(long h1, long h2)
+        {
+            for(int i=0; i < hashes; ++i)
+            {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long h1, long h2)
+        {
+            for(int i=0; i < hashes; ++i)
+            {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                int word = (int)(bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                while(((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask))
+                {
+                }
+            }
+        }
+    }
+
+    public BlockFilter(double falsePositiveRate)
+    {
+        if(falsePositiveRate <= 0 || 1 <= falsePositiveRate)
+        {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        // The rates of the stages form a geometric series that sums to the target
+        this.stages = new Stage[] { new Stage(INITIAL_CAPACITY, falsePositiveRate * (1 - TIGHTENING)) };
+    }
+
+    public boolean mightContain(byte[] digest)
+    {
+        long h1 = word(digest, 0), h2 = word(digest, 8) | 1;
+        for(Stage stage : stages)
+        {
+            if(stage.mightContain(h1, h2))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(byte[] digest)
+    {
+        long h1 = word(digest, 0), h2 = word(digest, 8) | 1;
+        Stage[] current = stages;
+        Stage last = current[current.length - 1];
+        if(last.capacity <= last.size.get())
+        {
+            last = grow(current);
+        }
+        last.add(h1, h2);
+        last.size.incrementAndGet();
+    }
+
+    // Expected false-positive rate for the blocks added so far
+    public double getExpectedFalsePositiveRate()
+    {
+        double pass = 1;
+        for(Stage stage : stages)
+        {
+            double filled = Math.min(stage.size.get(), stage.capacity);
+            pass *= 1 - Math.pow(1 - Math.exp(-stage.hashes * filled / stage.bitCount), stage.hashes);
+        }
+        return 1 - pass;
+    }
+
+    public double getTargetFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    public long getSizeInBytes()
+    {
+        long bytes = 0;
+        for(Stage stage : stages)
+        {
+            bytes += stage.bitCount / 8;
+        }
+        return bytes;
+    }
+
+    private Stage grow(Stage[] seen)
+    {
+        synchronized(growLock)
+        {
+            Stage[] current = stages;
+            if(current == seen)
+            {
+                Stage last = current[current.length - 1];
+                double rate = falsePositiveRate * (1 - TIGHTENING) * Math.pow(TIGHTENING, current.length);
+                Stage[] grown = new Stage[current.length + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = new Stage(Math.min(last.capacity * 2, MAX_CAPACITY), rate);
+                stages = grown;
+                current = grown;
+            }
+            return current[current.length - 1];
+        }
+    }
+
+    private static long word(byte[] b, int off)
+    {
+        long x = 0;
+        for(int i=0; i < 8; ++i)
+        {
+            x = (x << 8) | (b[off + i] & 0xff);
+        }
+        return x;
+    }
+}
@@ -0,0 +1,161 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * Names blocks by a 32-byte hash of their bytes, Base64 encoded.
+ *
+ * SHA-256 is the default and names blocks as they were always named. A
+ * JVM that uses the CPU's SHA instructions hashes it fastest; without them
+ * SHA-512/256 is about half again as fast on 64-bit CPUs. Its names are the
+ * first 31 bytes of the digest and a tag byte, so block servers store them
+ * like any other name, and a block can be verified whichever client stored
+ * it: only SHA-256 names that happen to end in the tag are hashed both
+ * ways. The tag goes last because the leading bytes of a name place it on
+ * the ring of block servers and in the Bloom filter, which need them to be
+ * uniformly distributed.
+ *
+ * A FileInfo can carry its blocklist as the raw bytes of the names
+ * instead of their Base64 text, a quarter less on the wire.
+ *
+ * Specs are "sha256" or "sha512-256", as in the config file.
+ */
+public final class BlockHash
+{
+    public static final String DEFAULT_SPEC = "sha256";
+    public static final BlockHash SHA256 = new BlockHash("sha256", "SHA-256", -1);
+    public static final BlockHash SHA512_256 = new BlockHash("sha512-256", "SHA-512/256", 1);
+
+    private final String spec;
+    private final int tag; // last byte of every name, -1 for the bare digest
+    private final ThreadLocal<MessageDigest> digests;
+
+    private BlockHash(String spec, final String algorithm, int tag)
+    {
+        this.spec = spec;
+        this.tag = tag;
+        this.digests = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    public static BlockHash parse(String spec)
+    {
+        for(BlockHash hash : new BlockHash[] {SHA256, SHA512_256})
+        {
+            if(hash.spec.equals(spec.trim()))
+            {
+                return hash;
+            }
+        }
+        throw new IllegalArgumentException("Hash must be \"sha256\" or \"sha512-256\": " + spec);
+    }
+
+    // The name of a block with these bytes; "data" itself is not consumed
+    public String name(ByteBuffer data)
+    {
+        MessageDigest digest = digests.get();
+        digest.update(data.duplicate());
+        byte[] hash = digest.digest();
+        if(tag < 0)
+        {
+            return Base64.getEncoder().encodeToString(hash);
+        }
+        byte[] tagged = new byte[hash.length];
+        System.arraycopy(hash, 0, tagged, 0, hash.length - 1);
+        tagged[hash.length - 1] = (byte)tag;
+        return Base64.getEncoder().encodeToString(tagged);
+    }
+
+    // True if "name" names a block with these bytes, whichever algorithm made it
+    public static boolean matches(String name, ByteBuffer data)
+    {
+        byte[] bytes;
+        try
+        {
+            bytes = Base64.getDecoder().decode(name);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return false;
+        }
+        if(bytes.length != 32)
+        {
+            return false;
+        }
+        if(bytes[31] == SHA512_256.tag && name.equals(SHA512_256.name(data)))
+        {
+            return true;
+        }
+        return name.equals(SHA256.name(data));
+    }
+
+    // The names as one run of raw 32-byte digests, or null if one is not a
+    // block name, such as the "0" of a deleted file
+    public static byte[] pack(List<String> names)
+    {
+        byte[] bytes = new byte[names.size() * 32];
+        Base64.Decoder decoder = Base64.getDecoder();
+        for(int i=0; i < names.size(); ++i)
+        {
+            String name = names.get(i);
+            byte[] digest;
+            try
+            {
+                digest = name.length() == 44 ? decoder.decode(name) : null;
+            }
+            catch(IllegalArgumentException e)
+            {
+                return null;
+            }
+            if(digest == null || digest.length != 32)
+            {
+                return null;
+            }
+            System.arraycopy(digest, 0, bytes, i * 32, 32);
+        }
+        return bytes;
+    }
+
+    public static List<String> fromDigests(List<ByteString> digests)
+    {
+        List<String> names = new ArrayList<String>(digests.size());
+        Base64.Encoder encoder = Base64.getEncoder();
+        for(ByteString digest : digests)
+        {
+            names.add(encoder.encodeToString(digest.toByteArray()));
+        }
+        return names;
+    }
+
+    // The FileInfo with its blocklist in "blocklist", as the rest of the
+    // client expects it, if it came as digests
+    public static FileInfo withNames(FileInfo info)
+    {
+        if(info.getBlockDigestsCount() == 0)
+        {
+            return info;
+        }
+        return info.toBuilder().clearBlockDigests().addAllBlocklist(fromDigests(info.getBlockDigestsList())).build();
+    }
+
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+}
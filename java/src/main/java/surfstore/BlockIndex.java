@@ -0,0 +1,375 @@
+package surfstore;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent hash index from 256-bit block digests to a (position, length)
+ * pair whose meaning is up to the storage engine.
+ *
+ * Entries live in primitive arrays: four longs of key, one long of position
+ * and one int of length, about 44 bytes per entry before load factor,
+ * instead of a Base64 String, a boxed value and a map node. The table is
+ * split into independently locked stripes. Lookups use optimistic reads, so
+ * readers never write to shared memory and scale with the number of cores.
+ */
+public final class BlockIndex
+{
+    public static final int DIGEST_SIZE = 32;
+
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 256;
+    private static final double MAX_LOAD = 0.7;
+    private static final int EMPTY = -1;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    private static final class Table
+    {
+        final long[] keys; // four longs per slot
+        final long[] positions;
+        final int[] lengths; // EMPTY marks a free slot
+        final int mask;
+
+        Table(int capacity)
+        {
+            keys = new long[capacity * 4];
+            positions = new long[capacity];
+            lengths = new int[capacity];
+            Arrays.fill(lengths, EMPTY);
+            mask = capacity - 1;
+        }
+    }
+
+    private static final class Stripe
+    {
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(INITIAL_STRIPE_CAPACITY);
+        int size; // guarded by the write lock
+    }
+
+    public BlockIndex()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    public BlockIndex(int stripeCount)
+    {
+        if(Integer.bitCount(stripeCount) != 1)
+        {
+            throw new IllegalArgumentException("Stripe count must be a power of two");
+        }
+        stripes = new Stripe[stripeCount];
+        for(int i=0; i < stripeCount; ++i)
+        {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = stripeCount - 1;
+    }
+
+    // Decodes a Base64 block hash, or returns null if it is not a 256-bit digest
+    public static byte[] decodeHash(String hash)
+    {
+        if(hash.length() != 44)
+        {
+            return null;
+        }
+        try
+        {
+            byte[] digest = Base64.getDecoder().decode(hash);
+            return digest.length == DIGEST_SIZE ? digest : null;
+        }
+        catch(IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    public static String encodeHash(byte[] digest)
+    {
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    public boolean contains(byte[] digest)
+    {
+        return get(digest, null);
+    }
+
+    // Fills entry[0] with the position and entry[1] with the length if the digest is present
+    public boolean get(byte[] digest, long[] entry)
+    {
+        long k0 = word(digest, 0), k1 = word(digest, 8), k2 = word(digest, 16), k3 = word(digest, 24);
+        Stripe stripe = stripeFor(k0);
+        StampedLock lock = stripe.lock;
+        long stamp = lock.tryOptimisticRead();
+        if(stamp != 0)
+        {
+            long position = 0;
+            int length = EMPTY;
+            Table table = stripe.table;
+            int slot = find(table, k0, k1, k2, k3);
+            if(0 <= slot)
+            {
+                position = table.positions[slot];
+                length = table.lengths[slot];
+            }
+            if(lock.validate(stamp))
+            {
+                return fill(entry, position, length);
+            }
+        }
+        stamp = lock.readLock();
+        try
+        {
+            Table table = stripe.table;
+            int slot = find(table, k0, k1, k2, k3);
+            return 0 <= slot && fill(entry, table.positions[slot], table.lengths[slot]);
+        }
+        finally
+        {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Inserts or replaces the entry for a digest
+    public void put(byte[] digest, long position, int length)
+    {
+        put(digest, position, length, true);
+    }
+
+    // Inserts the entry unless the digest has one; true if it was inserted
+    public boolean putIfAbsent(byte[] digest, long position, int length)
+    {
+        return put(digest, position, length, false);
+    }
+
+    private boolean put(byte[] digest, long position, int length, boolean replace)
+    {
+        if(length < 0)
+        {
+            throw new IllegalArgumentException("Negative block length");
+        }
+        long k0 = word(digest, 0), k1 = word(digest, 8), k2 = word(digest, 16), k3 = word(digest, 24);
+        Stripe stripe = stripeFor(k0);
+        long stamp = stripe.lock.writeLock();
+        try
+        {
+            Table table = stripe.table;
+            int slot = find(table, k0, k1, k2, k3);
+            if(slot < 0)
+            {
+                if(MAX_LOAD * (table.mask + 1) <= stripe.size + 1)
+                {
+                    table = resize(stripe, (table.mask + 1) * 2);
+                }
+                slot = ~find(table, k0, k1, k2, k3);
+                table.keys[slot * 4] = k0;
+                table.keys[slot * 4 + 1] = k1;
+                table.keys[slot * 4 + 2] = k2;
+                table.keys[slot * 4 + 3] = k3;
+                ++stripe.size;
+            }
+            else if(!replace)
+            {
+                return false;
+            }
+            table.positions[slot] = position;
+            table.lengths[slot] = length;
+            return true;
+        }
+        finally
+        {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean remove(byte[] digest)
+    {
+        return remove(digest, null);
+    }
+
+    // Also fills "entry" with the position and length that were removed
+    public boolean remove(byte[] digest, long[] entry)
+    {
+        long k0 = word(digest, 0), k1 = word(digest, 8), k2 = word(digest, 16), k3 = word(digest, 24);
+        Stripe stripe = stripeFor(k0);
+        long stamp = stripe.lock.writeLock();
+        try
+        {
+            Table table = stripe.table;
+            int hole = find(table, k0, k1, k2, k3);
+            if(hole < 0)
+            {
+                return false;
+            }
+            if(entry != null)
+            {
+                entry[0] = table.positions[hole];
+                entry[1] = table.lengths[hole];
+            }
+            // Backward-shift deletion: pull later entries of the probe run into
+            // the hole whenever their home slot allows it, so no tombstones are needed
+            int mask = table.mask;
+            int next = (hole + 1) & mask;
+            while(table.lengths[next] != EMPTY)
+            {
+                int home = (int)mix(table.keys[next * 4 + 1]) & mask;
+                if(((next - hole) & mask) <= ((next - home) & mask))
+                {
+                    System.arraycopy(table.keys, next * 4, table.keys, hole * 4, 4);
+                    table.positions[hole] = table.positions[next];
+                    table.lengths[hole] = table.lengths[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table.lengths[hole] = EMPTY;
+            --stripe.size;
+            return true;
+        }
+        finally
+        {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public interface Visitor
+    {
+        void visit(byte[] digest, long position, int length);
+    }
+
+    // Visits a snapshot of each stripe in turn, outside of its lock
+    public void forEach(Visitor visitor)
+    {
+        for(Stripe stripe : stripes)
+        {
+            long[] keys;
+            long[] positions;
+            int[] lengths;
+            long stamp = stripe.lock.readLock();
+            try
+            {
+                Table table = stripe.table;
+                keys = table.keys.clone();
+                positions = table.positions.clone();
+                lengths = table.lengths.clone();
+            }
+            finally
+            {
+                stripe.lock.unlockRead(stamp);
+            }
+            for(int slot=0; slot < lengths.length; ++slot)
+            {
+                if(lengths[slot] != EMPTY)
+                {
+                    byte[] digest = new byte[DIGEST_SIZE];
+                    for(int i=0; i < 4; ++i)
+                    {
+                        putWord(digest, i * 8, keys[slot * 4 + i]);
+                    }
+                    visitor.visit(digest, positions[slot], lengths[slot]);
+                }
+            }
+        }
+    }
+
+    public int size()
+    {
+        int total = 0;
+        for(Stripe stripe : stripes)
+        {
+            long stamp = stripe.lock.readLock();
+            total += stripe.size;
+            stripe.lock.unlockRead(stamp);
+        }
+        return total;
+    }
+
+    // Returns the slot holding the key, or ~slot of the free slot where it would go.
+    // Bounded by the capacity so a torn optimistic read can never spin forever.
+    private static int find(Table table, long k0, long k1, long k2, long k3)
+    {
+        int mask = table.mask;
+        int slot = (int)mix(k1) & mask;
+        for(int probes=0; probes <= mask; ++probes)
+        {
+            if(table.lengths[slot] == EMPTY)
+            {
+                return ~slot;
+            }
+            int base = slot * 4;
+            if(table.keys[base] == k0 && table.keys[base + 1] == k1
+                    && table.keys[base + 2] == k2 && table.keys[base + 3] == k3)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    private static Table resize(Stripe stripe, int capacity)
+    {
+        Table old = stripe.table;
+        Table table = new Table(capacity);
+        for(int i=0; i <= old.mask; ++i)
+        {
+            if(old.lengths[i] != EMPTY)
+            {
+                int base = i * 4;
+                int slot = ~find(table, old.keys[base], old.keys[base + 1], old.keys[base + 2], old.keys[base + 3]);
+                System.arraycopy(old.keys, base, table.keys, slot * 4, 4);
+                table.positions[slot] = old.positions[i];
+                table.lengths[slot] = old.lengths[i];
+            }
+        }
+        stripe.table = table;
+        return table;
+    }
+
+    private Stripe stripeFor(long k0)
+    {
+        return stripes[(int)(mix(k0) >>> 32) & stripeMask];
+    }
+
+    private static boolean fill(long[] entry, long position, int length)
+    {
+        if(length == EMPTY)
+        {
+            return false;
+        }
+        if(entry != null)
+        {
+            entry[0] = position;
+            entry[1] = length;
+        }
+        return true;
+    }
+
+    // Digests are already uniform, but mixing keeps the index sound for any input
+    private static long mix(long x)
+    {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static void putWord(byte[] b, int off, long value)
+    {
+        for(int i=7; i >= 0; --i)
+        {
+            b[off + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    private static long word(byte[] b, int off)
+    {
+        return ((b[off] & 0xffL) << 56) | ((b[off + 1] & 0xffL) << 48) | ((b[off + 2] & 0xffL) << 40)
+                | ((b[off + 3] & 0xffL) << 32) | ((b[off + 4] & 0xffL) << 24) | ((b[off + 5] & 0xffL) << 16)
+                | ((b[off + 6] & 0xffL) << 8) | (b[off + 7] & 0xffL);
+    }
+}
@@ -0,0 +1,202 @@
+package surfstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.HashList;
+
+/**
+ * Moves blocks to the block server that owns them after block servers were
+ * added to or removed from the config file.
+ *
+ * Every server listed in the config is asked for its hashes. Blocks the
+ * ring assigns elsewhere are copied to their owner as stored, compressed or
+ * not, and only deleted from the old server once the owner has them. They
+ * are fetched one message per block, as a batch of blocks of up to
+ * MAX_BLOCK_SIZE could exceed the gRPC message limit, and stored
+ * BATCH_BYTES at a time.
+ * Servers that are no longer listed are only known from the config as it
+ * was before; given that, they are emptied the same way, while they still
+ * run.
+ */
+public final class BlockRebalancer
+{
+    private static final Logger logger = Logger.getLogger(BlockRebalancer.class.getName());
+    private static final int MOVE_BATCH = 256; // blocks fetched per GetBlockStream call
+
+    private final BlockCluster cluster;
+    private final BlockCluster oldCluster; // null if no server was removed
+    private final List<Integer> removed; // node numbers in "oldCluster"
+    private final boolean dryRun;
+
+    public BlockRebalancer(BlockCluster cluster, boolean dryRun)
+    {
+        this(cluster, null, new ArrayList<Integer>(), dryRun);
+    }
+
+    // The servers "removed" of "oldCluster" are emptied as well
+    public BlockRebalancer(BlockCluster cluster, BlockCluster oldCluster, List<Integer> removed, boolean dryRun)
+    {
+        this.cluster = cluster;
+        this.oldCluster = oldCluster;
+        this.removed = removed;
+        this.dryRun = dryRun;
+    }
+
+    // Returns the number of blocks that were (or, in a dry run, would be) moved
+    public long rebalance()
+    {
+        long moved = 0;
+        for(int node : removed)
+        {
+            moved += rebalance(oldCluster.stub(node), "removed block" + node, 0);
+        }
+        for(int node=1; node <= cluster.size(); ++node)
+        {
+            moved += rebalance(cluster.stub(node), "block" + node, node);
+        }
+        return moved;
+    }
+
+    // Moves the blocks of a server that the ring does not assign to "node",
+    // all of them for a server that is not in the cluster (node 0)
+    private long rebalance(BlockStoreGrpc.BlockStoreBlockingStub from, String name, int node)
+    {
+        List<String> misplaced = new ArrayList<String>();
+        long total = 0;
+        Iterator<HashList> pages = from.listBlocks(Empty.newBuilder().build());
+        while(pages.hasNext())
+        {
+            for(String hash : pages.next().getHashesList())
+            {
+                ++total;
+                if(cluster.nodeFor(hash) != node)
+                {
+                    misplaced.add(hash);
+                }
+            }
+        }
+        logger.info(name + ": " + misplaced.size() + " of " + total + " blocks belong elsewhere");
+        if(!dryRun)
+        {
+            for(int start=0; start < misplaced.size(); start += MOVE_BATCH)
+            {
+                move(from, misplaced.subList(start, Math.min(start + MOVE_BATCH, misplaced.size())));
+            }
+        }
+        return misplaced.size();
+    }
+
+    private void move(BlockStoreGrpc.BlockStoreBlockingStub from, List<String> hashes)
+    {
+        HashList query = HashList.newBuilder().addAllHashes(hashes).setAcceptCompressed(true).build();
+        Iterator<Block> blocks = from.getBlockStream(query);
+        List<Block> found = new ArrayList<Block>();
+        int foundBytes = 0;
+        while(blocks.hasNext())
+        {
+            Block block = blocks.next();
+            if(block.getHash().isEmpty()) // deleted since it was listed
+            {
+                continue;
+            }
+            if(!found.isEmpty() && BlockCluster.BATCH_BYTES < foundBytes + block.getData().size())
+            {
+                store(from, found);
+                found.clear();
+                foundBytes = 0;
+            }
+            found.add(block);
+            foundBytes += block.getData().size();
+        }
+        store(from, found);
+    }
+
+    // Copies the blocks to their owners, then deletes them from "from"
+    private void store(BlockStoreGrpc.BlockStoreBlockingStub from, List<Block> blocks)
+    {
+        if(blocks.isEmpty())
+        {
+            return;
+        }
+        cluster.storeBlocks(blocks);
+        HashList.Builder stored = HashList.newBuilder();
+        for(Block block : blocks)
+        {
+            stored.addHashes(block.getHash());
+        }
+        from.deleteBlocks(stored.build());
+    }
+
+    private static Namespace parseArgs(String[] args)
+    {
+        ArgumentParser parser = ArgumentParsers.newFor("BlockRebalancer").build()
+                .description("Moves blocks to the block server that owns them");
+        parser.addArgument("config_file").type(String.class)
+                .help("Path to configuration file");
+        parser.addArgument("--old_config").type(String.class)
+                .help("The configuration file before the change; block servers "
+                        + "it lists that the new one does not are emptied");
+        parser.addArgument("--dry_run").action(Arguments.storeTrue())
+                .help("Only report how many blocks would move");
+        Namespace res = null;
+        try
+        {
+            res = parser.parseArgs(args);
+        }
+        catch(ArgumentParserException e)
+        {
+            parser.handleError(e);
+        }
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Namespace c_args = parseArgs(args);
+        if(c_args == null)
+        {
+            throw new RuntimeException("Argument parsing failed");
+        }
+
+        ConfigReader config = new ConfigReader(new File(c_args.getString("config_file")));
+        BlockCluster cluster = new BlockCluster(config);
+        BlockCluster oldCluster = null;
+        List<Integer> removed = new ArrayList<Integer>();
+        if(c_args.getString("old_config") != null)
+        {
+            ConfigReader oldConfig = new ConfigReader(new File(c_args.getString("old_config")));
+            for(int node=1; node <= oldConfig.getNumBlockServers(); ++node)
+            {
+                if(!config.blockPorts.containsValue(oldConfig.getBlockPort(node)))
+                {
+                    removed.add(node);
+                }
+            }
+            oldCluster = new BlockCluster(oldConfig);
+        }
+        try
+        {
+            boolean dryRun = c_args.getBoolean("dry_run");
+            long moved = new BlockRebalancer(cluster, oldCluster, removed, dryRun).rebalance();
+            System.out.println((dryRun ? "Would move " : "Moved ") + moved + " blocks");
+        }
+        finally
+        {
+            cluster.shutdown();
+            if(oldCluster != null)
+            {
+                oldCluster.shutdown();
+            }
+        }
+    }
+}
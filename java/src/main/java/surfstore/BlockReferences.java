@@ -0,0 +1,165 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference counts of blocks over the current blocklists of all files,
+ * kept by the leader MetadataStore for the BlockCollector.
+ *
+ * A block whose count drops to zero, or that a sweep of the block servers
+ * finds without references, becomes unreferenced from that moment on. The
+ * collector claims blocks that stayed unreferenced for its grace period;
+ * while a claimed block is being deleted, a file cannot start using it.
+ *
+ * A write pins its blocks before it asks the block servers for them, so
+ * none can be claimed and deleted between that answer and the write.
+ */
+public final class BlockReferences
+{
+    private static final String NO_BLOCK = "0"; // blocklist of a missing or deleted file
+
+    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    // In the order blocks became unreferenced, with the time they did
+    private final LinkedHashMap<String, Long> unreferenced = new LinkedHashMap<String, Long>();
+    private final HashSet<String> collecting = new HashSet<String>();
+    private final HashMap<String, Integer> pinned = new HashMap<String, Integer>();
+
+    // Moves one file's references from its old blocklist to its new one. If
+    // any new block is being collected right now nothing changes and those
+    // blocks are returned; the client has to upload them again.
+    public synchronized List<String> update(List<String> oldBlocks, List<String> newBlocks)
+    {
+        List<String> busy = new ArrayList<String>();
+        for(String hash : newBlocks)
+        {
+            if(collecting.contains(hash))
+            {
+                busy.add(hash);
+            }
+        }
+        if(!busy.isEmpty())
+        {
+            return busy;
+        }
+        // Counting up first keeps blocks in both lists from touching zero
+        for(String hash : newBlocks)
+        {
+            if(!NO_BLOCK.equals(hash))
+            {
+                Integer count = counts.get(hash);
+                counts.put(hash, count == null ? 1 : count + 1);
+                unreferenced.remove(hash);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for(String hash : oldBlocks)
+        {
+            Integer count = counts.get(hash);
+            if(count == null)
+            {
+                continue;
+            }
+            if(count == 1)
+            {
+                counts.remove(hash);
+                unreferenced.put(hash, now);
+            }
+            else
+            {
+                counts.put(hash, count - 1);
+            }
+        }
+        return busy;
+    }
+
+    // Keeps the collector from claiming these blocks until they are unpinned.
+    // Returns those it has claimed already; they may be gone whatever a
+    // block server says about them.
+    public synchronized List<String> pin(List<String> hashes)
+    {
+        List<String> busy = new ArrayList<String>();
+        for(String hash : hashes)
+        {
+            Integer count = pinned.get(hash);
+            pinned.put(hash, count == null ? 1 : count + 1);
+            if(collecting.contains(hash))
+            {
+                busy.add(hash);
+            }
+        }
+        return busy;
+    }
+
+    public synchronized void unpin(List<String> hashes)
+    {
+        for(String hash : hashes)
+        {
+            Integer count = pinned.get(hash);
+            if(count == null || count == 1)
+            {
+                pinned.remove(hash);
+            }
+            else
+            {
+                pinned.put(hash, count - 1);
+            }
+        }
+    }
+
+    // Records a block found on a block server; it starts aging if no file uses it
+    public synchronized void found(String hash)
+    {
+        if(!counts.containsKey(hash) && !collecting.contains(hash) && !unreferenced.containsKey(hash))
+        {
+            unreferenced.put(hash, System.currentTimeMillis());
+        }
+    }
+
+    // Claims up to "max" blocks that have been unreferenced since "cutoff" or earlier
+    public synchronized List<String> claim(long cutoff, int max)
+    {
+        List<String> claimed = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> it = unreferenced.entrySet().iterator();
+        while(claimed.size() < max && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            if(cutoff < eldest.getValue())
+            {
+                break;
+            }
+            if(pinned.containsKey(eldest.getKey()))
+            {
+                continue; // a write is about to use it
+            }
+            it.remove();
+            collecting.add(eldest.getKey());
+            claimed.add(eldest.getKey());
+        }
+        return claimed;
+    }
+
+    // Ends a claim. Blocks that could not be deleted start aging again.
+    public synchronized void release(List<String> claimed, boolean deleted)
+    {
+        long now = System.currentTimeMillis();
+        for(String hash : claimed)
+        {
+            collecting.remove(hash);
+            if(!deleted)
+            {
+                unreferenced.put(hash, now);
+            }
+        }
+    }
+
+    public synchronized int getUnreferencedCount()
+    {
+        return unreferenced.size();
+    }
+}
@@ -0,0 +1,50 @@
+package surfstore;
+
+import java.io.IOException;
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Storage engine behind the BlockStore service. Blocks are immutable and
+ * addressed by their hash, so storing the same hash twice is a no-op.
+ *
+ * Blocks go in and come out as ByteStrings so the service can pass request
+ * payloads straight through and answer reads without copying. A returned
+ * ByteString may wrap storage-owned memory and must not be modified.
+ * Each block is kept with the compression its bytes are encoded in.
+ */
+public interface BlockStorage
+{
+    void storeBlock(String hash, ByteString data, Compression compression) throws IOException;
+
+    // Returns null if the block is not stored
+    StoredBlock getBlock(String hash) throws IOException;
+
+    boolean hasBlock(String hash);
+
+    // Deleting a block that is not stored is a no-op
+    void deleteBlock(String hash) throws IOException;
+
+    // Visits every stored block. Blocks stored or deleted during the walk
+    // may or may not be visited.
+    void forEachBlock(BlockVisitor visitor);
+
+    void close() throws IOException;
+
+    interface BlockVisitor
+    {
+        void visit(String hash);
+    }
+
+    final class StoredBlock
+    {
+        public final ByteString data;
+        public final Compression compression;
+
+        public StoredBlock(ByteString data, Compression compression)
+        {
+            this.data = data;
+            this.compression = compression;
+        }
+    }
+}
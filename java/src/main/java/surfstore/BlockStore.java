@@ -2,12 +2,18 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.HashMap;
 import com.google.protobuf.ByteString;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -20,21 +26,32 @@ import surfstore.SurfStoreBasic.WriteResult;
 import surfstore.SurfStoreBasic.SimpleAnswer;
 import surfstore.SurfStoreBasic.NodeList;
 import surfstore.SurfStoreBasic.Index;
+import surfstore.SurfStoreBasic.HashList;
+import surfstore.SurfStoreBasic.BlockList;
+import surfstore.SurfStoreBasic.AnswerList;
+import surfstore.SurfStoreBasic.Compression;
+import surfstore.BlockStorage.StoredBlock;
 
 
 public final class BlockStore {
     private static final Logger logger = Logger.getLogger(BlockStore.class.getName());
 
+    private static final int LIST_PAGE_SIZE = 4096;
+
     protected Server server;
 	protected ConfigReader config;
+    protected BlockStorage storage;
+    protected Compression compression;
 
-    public BlockStore(ConfigReader config) {
+    public BlockStore(ConfigReader config, BlockStorage storage, Compression compression) {
     	this.config = config;
+        this.storage = storage;
+        this.compression = compression;
 	}
 
 	private void start(int port, int numThreads) throws IOException {
         server = ServerBuilder.forPort(port)
-                .addService(new BlockStoreImpl())
+                .addService(new BlockStoreImpl(storage, compression))
                 .executor(Executors.newFixedThreadPool(numThreads))
                 .build()
                 .start();
@@ -53,6 +70,11 @@ public final class BlockStore {
         if (server != null) {
             server.shutdown();
         }
+        try {
+            storage.close();
+        } catch (IOException e) {
+            System.err.println("*** failed to close block storage: " + e.getMessage());
+        }
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -66,8 +88,28 @@ public final class BlockStore {
                 .description("BlockStore server for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
+        parser.addArgument("-n", "--number").type(Integer.class).setDefault(1)
+                .help("Which block server from the config file this is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
                 .help("Maximum number of concurrent threads");
+        parser.addArgument("-d", "--data_dir").type(String.class)
+                .help("Directory for the on-disk block log (blocks are kept in memory if not set)");
+        parser.addArgument("--segment_size").type(Integer.class).setDefault(64)
+                .help("Size of each block log segment in MB");
+        parser.addArgument("--cache_size").type(Integer.class).setDefault(64)
+                .help("Off-heap cache for blocks read from the data directory, in MB (0 disables it)");
+        parser.addArgument("--stats_interval").type(Integer.class).setDefault(60)
+                .help("Seconds between cache and filter statistics log lines");
+        parser.addArgument("--filter_fp").type(Double.class).setDefault(0.01)
+                .help("Target false-positive rate of the filter that answers lookups of absent blocks (0 disables it)");
+        parser.addArgument("--compression").choices("none", "fast", "best").setDefault("none")
+                .help("Compress compressible blocks when they are stored");
+        parser.addArgument("--compact_interval").type(Integer.class).setDefault(600)
+                .help("Seconds between compactions of the block log (0 disables them)");
+        parser.addArgument("--compact_garbage").type(Double.class).setDefault(0.5)
+                .help("Share of deleted bytes at which a block log segment is compacted");
+        parser.addArgument("--sync_interval").type(Integer.class).setDefault(0)
+                .help("Milliseconds between background fsyncs (0 syncs before acknowledging each write)");
 
         Namespace res = null;
         try {
@@ -88,19 +130,72 @@ public final class BlockStore {
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
 
-        final BlockStore server = new BlockStore(config);
-        server.start(config.getBlockPort(), c_args.getInt("threads"));
+        BlockStorage storage;
+        BlockCache cache = null;
+        if (c_args.getString("data_dir") != null) {
+            final LogBlockStorage log = new LogBlockStorage(new File(c_args.getString("data_dir")),
+                    c_args.getInt("segment_size") * 1024L * 1024L, c_args.getInt("sync_interval"));
+            storage = log;
+            long compactInterval = c_args.getInt("compact_interval") * 1000L;
+            if (0 < compactInterval) {
+                final double minGarbage = c_args.getDouble("compact_garbage");
+                new Timer("LogBlockStorage-compaction", true).schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            log.compact(minGarbage);
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Block log compaction failed", e);
+                        }
+                    }
+                }, compactInterval, compactInterval);
+            }
+            if (0 < c_args.getInt("cache_size")) {
+                cache = new BlockCache(c_args.getInt("cache_size") * 1024L * 1024L);
+                storage = new CachingBlockStorage(storage, cache);
+            }
+        } else {
+            storage = new MemoryBlockStorage();
+        }
+        FilteredBlockStorage filtered = null;
+        if (0 < c_args.getDouble("filter_fp")) {
+            filtered = new FilteredBlockStorage(storage, new BlockFilter(c_args.getDouble("filter_fp")));
+            storage = filtered;
+        }
+
+        long statsInterval = c_args.getInt("stats_interval") * 1000L;
+        if (0 < statsInterval && (cache != null || filtered != null)) {
+            final BlockCache statsCache = cache;
+            final FilteredBlockStorage statsFilter = filtered;
+            new Timer("BlockStore-stats", true).schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if (statsCache != null) {
+                        logger.info(statsCache.toString());
+                    }
+                    if (statsFilter != null) {
+                        logger.info(statsFilter.toString());
+                    }
+                }
+            }, statsInterval, statsInterval);
+        }
+
+        final BlockStore server = new BlockStore(config, storage,
+                BlockCompressor.parse(c_args.getString("compression")));
+        server.start(config.getBlockPort(c_args.getInt("number")), c_args.getInt("threads"));
         server.blockUntilShutdown();
     }
 
     static class BlockStoreImpl extends BlockStoreGrpc.BlockStoreImplBase 
     {
-        protected HashMap<String, byte[]> blockMap;
+        protected BlockStorage storage;
+        protected Compression compression;
 
-        public BlockStoreImpl()
+        public BlockStoreImpl(BlockStorage storage, Compression compression)
         {
             super();
-            this.blockMap = new HashMap<String, byte[]>();
+            this.storage = storage;
+            this.compression = compression;
         }
 
         @Override
@@ -114,7 +209,20 @@ public final class BlockStore {
         public void storeBlock(Block req, StreamObserver<Empty> responseObserver) 
         {
             Empty response = Empty.newBuilder().build();
-            blockMap.put(req.getHash(), req.getData().toByteArray()); 
+            try
+            {
+                store(req);
+            }
+            catch(IllegalArgumentException e)
+            {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
@@ -122,11 +230,16 @@ public final class BlockStore {
         @Override
         public void getBlock(Block req, StreamObserver<Block> responseObserver) 
         {
-            byte[] data = blockMap.get(req.getHash());
-            Block.Builder builder = Block.newBuilder();
-            builder.setData(ByteString.copyFrom(data));
-            builder.setHash(req.getHash());
-            Block response = builder.build(); 
+            Block response;
+            try
+            {
+                response = loadBlock(req.getHash(), req.getAcceptCompressed());
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
@@ -134,10 +247,254 @@ public final class BlockStore {
         @Override
         public void hasBlock(Block req, StreamObserver<SimpleAnswer> responseObserver) 
         {
-            Boolean answer = blockMap.containsKey(req.getHash());
+            Boolean answer = storage.hasBlock(req.getHash());
             SimpleAnswer response = SimpleAnswer.newBuilder().setAnswer(answer).build(); 
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void hasBlocks(HashList req, StreamObserver<AnswerList> responseObserver)
+        {
+            AnswerList.Builder response = AnswerList.newBuilder();
+            for(int i=0; i < req.getHashesCount(); ++i)
+            {
+                response.addAnswers(storage.hasBlock(req.getHashes(i)));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void storeBlocks(BlockList req, StreamObserver<Empty> responseObserver)
+        {
+            try
+            {
+                for(int i=0; i < req.getBlocksCount(); ++i)
+                {
+                    store(req.getBlocks(i));
+                }
+            }
+            catch(IllegalArgumentException e)
+            {
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void getBlocks(HashList req, StreamObserver<BlockList> responseObserver)
+        {
+            BlockList.Builder response = BlockList.newBuilder();
+            try
+            {
+                for(int i=0; i < req.getHashesCount(); ++i)
+                {
+                    response.addBlocks(loadBlock(req.getHashes(i), req.getAcceptCompressed()));
+                }
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        // Inbound flow control is left automatic: the next block is only
+        // requested from the client after onNext has stored this one.
+        @Override
+        public StreamObserver<Block> storeBlockStream(final StreamObserver<Empty> responseObserver)
+        {
+            return new StreamObserver<Block>() {
+                private boolean failed = false;
+
+                @Override
+                public void onNext(Block block) {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        store(block);
+                    } catch (IllegalArgumentException e) {
+                        failed = true;
+                        responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                    } catch (IOException e) {
+                        failed = true;
+                        responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.warning("StoreBlockStream cancelled: " + t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (!failed) {
+                        responseObserver.onNext(Empty.newBuilder().build());
+                        responseObserver.onCompleted();
+                    }
+                }
+            };
+        }
+
+        // Only sends while the transport has room, and resumes from the
+        // onReady callback once the client has drained its window.
+        @Override
+        public void getBlockStream(final HashList req, StreamObserver<Block> responseObserver)
+        {
+            final ServerCallStreamObserver<Block> observer = (ServerCallStreamObserver<Block>) responseObserver;
+            Runnable drain = new Runnable() {
+                private int next = 0;
+                private boolean done = false;
+
+                @Override
+                public synchronized void run() {
+                    if (done) {
+                        return;
+                    }
+                    try {
+                        while (next < req.getHashesCount() && observer.isReady() && !observer.isCancelled()) {
+                            observer.onNext(loadBlock(req.getHashes(next), req.getAcceptCompressed()));
+                            ++next;
+                        }
+                    } catch (IOException e) {
+                        done = true;
+                        observer.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                        return;
+                    }
+                    if (next == req.getHashesCount() || observer.isCancelled()) {
+                        done = true;
+                        if (!observer.isCancelled()) {
+                            observer.onCompleted();
+                        }
+                    }
+                }
+            };
+            observer.setOnReadyHandler(drain);
+            drain.run(); // the stream may already be ready, in which case no callback comes
+        }
+
+        // The hashes are collected up front so the storage is not held
+        // open while a slow client reads the pages
+        @Override
+        public void listBlocks(Empty req, StreamObserver<HashList> responseObserver)
+        {
+            final List<HashList> pages = new ArrayList<HashList>();
+            final HashList.Builder[] page = { HashList.newBuilder() };
+            storage.forEachBlock(new BlockStorage.BlockVisitor() {
+                @Override
+                public void visit(String hash) {
+                    page[0].addHashes(hash);
+                    if (page[0].getHashesCount() == LIST_PAGE_SIZE) {
+                        pages.add(page[0].build());
+                        page[0] = HashList.newBuilder();
+                    }
+                }
+            });
+            if (0 < page[0].getHashesCount()) {
+                pages.add(page[0].build());
+            }
+
+            final ServerCallStreamObserver<HashList> observer = (ServerCallStreamObserver<HashList>) responseObserver;
+            Runnable drain = new Runnable() {
+                private int next = 0;
+                private boolean done = false;
+
+                @Override
+                public synchronized void run() {
+                    if (done) {
+                        return;
+                    }
+                    while (next < pages.size() && observer.isReady() && !observer.isCancelled()) {
+                        observer.onNext(pages.get(next++));
+                    }
+                    if (next == pages.size() || observer.isCancelled()) {
+                        done = true;
+                        if (!observer.isCancelled()) {
+                            observer.onCompleted();
+                        }
+                    }
+                }
+            };
+            observer.setOnReadyHandler(drain);
+            drain.run();
+        }
+
+        @Override
+        public void deleteBlocks(HashList req, StreamObserver<Empty> responseObserver)
+        {
+            try
+            {
+                for(int i=0; i < req.getHashesCount(); ++i)
+                {
+                    storage.deleteBlock(req.getHashes(i));
+                }
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        }
+
+        // Raw blocks are compressed with the configured codec if they are
+        // worth it; blocks the client already compressed are kept as sent,
+        // once they are known to inflate to the block they are named for
+        private void store(Block block) throws IOException
+        {
+            if(storage.hasBlock(block.getHash()))
+            {
+                return;
+            }
+            StoredBlock stored;
+            if(block.getCompression() == Compression.NONE)
+            {
+                stored = BlockCompressor.compress(block.getData(), compression);
+            }
+            else
+            {
+                ByteString data = BlockCompressor.decompress(block.getData(), block.getCompression());
+                if(!BlockHash.matches(block.getHash(), data.asReadOnlyByteBuffer()))
+                {
+                    throw new IllegalArgumentException("Compressed block does not match its hash");
+                }
+                stored = new StoredBlock(block.getData(), block.getCompression());
+            }
+            storage.storeBlock(block.getHash(), stored.data, stored.compression);
+        }
+
+        // An unknown block comes back with an empty hash
+        private Block loadBlock(String hash, boolean acceptCompressed) throws IOException
+        {
+            StoredBlock stored = storage.getBlock(hash);
+            Block.Builder builder = Block.newBuilder();
+            if(stored != null)
+            {
+                if(acceptCompressed)
+                {
+                    builder.setData(stored.data);
+                    builder.setCompression(stored.compression);
+                }
+                else
+                {
+                    builder.setData(BlockCompressor.decompress(stored.data, stored.compression));
+                }
+                builder.setHash(hash);
+            }
+            return builder.build();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,436 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+
+/**
+ * Uploads a file's blocks as a pipeline instead of hash-everything, ask,
+ * then upload.
+ *
+ * A reader thread splits the memory-mapped file into a bounded queue of
+ * batches and hands each batch to a fork-join pool to be hashed, so
+ * hashing uses every core while reading goes on. Blocks are views of the
+ * mapping, never copies on the heap, so memory does not grow with the
+ * file. The calling thread takes the batches in
+ * order, asks the owning block servers which blocks they lack and writes
+ * those round-robin to up to "maxInFlight" StoreBlockStreams, spread over
+ * the servers. A stream is only written to while gRPC reports it ready,
+ * so the bytes in flight stay within the transport's flow-control window;
+ * a slow server backs the pipeline up all the way to the reader.
+ *
+ * Every CHECKPOINT_BYTES the streams are finished, so the servers have
+ * stored everything sent so far, and the blocks up to there are recorded
+ * in a journal next to the file. If the client dies, the next upload of
+ * the unchanged file starts after the last checkpoint without reading,
+ * hashing or asking about the blocks before it. The journal stays until
+ * forget() is called, once ModifyFile has taken the blocklist.
+ */
+public final class BlockUploader
+{
+    private static final int BATCH_BLOCKS = 256; // blocks per queue entry and HasBlocks call
+    private static final int QUEUE_BATCHES = 16; // read-ahead of the reader, 16 MB with 4 KB blocks
+    private static final int HASH_GRAIN = 16; // blocks hashed by one fork-join task
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024; // of the file between checkpoints
+
+    private final BlockCluster cluster;
+    private final BlockChunker chunker;
+    private final ForkJoinPool pool;
+    private final int streamsPerNode;
+
+    private static final class Batch
+    {
+        final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+        final long[] offsets = new long[BATCH_BLOCKS];
+        String[] hashes;
+        HashTask hashing;
+        Throwable error; // set on the last batch if reading failed
+    }
+
+    private static final class HashTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockChunker chunker;
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        HashTask(BlockChunker chunker, Batch batch, int from, int to)
+        {
+            this.chunker = chunker;
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from <= HASH_GRAIN)
+            {
+                for(int i=from; i < to; ++i)
+                {
+                    batch.hashes[i] = chunker.hash(batch.blocks.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new HashTask(chunker, batch, from, mid), new HashTask(chunker, batch, mid, to));
+        }
+    }
+
+    public BlockUploader(BlockCluster cluster, BlockChunker chunker, ForkJoinPool pool, int maxInFlight)
+    {
+        this.cluster = cluster;
+        this.chunker = chunker;
+        this.pool = pool;
+        this.streamsPerNode = Math.max(1, maxInFlight / cluster.size());
+    }
+
+    // Streams every block of the file the block servers do not have yet
+    // and returns where the file's blocks are
+    public FileBlocks upload(final File file) throws IOException, InterruptedException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        TransferJournal journal = TransferJournal.open(journalFile(file),
+                "upload " + attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " " + chunker);
+        FileBlocks fileBlocks = new FileBlocks();
+        final long start = resume(journal, fileBlocks);
+
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES);
+        Thread reader = new Thread("BlockUploader-reader") {
+            @Override
+            public void run() {
+                Batch last = new Batch();
+                try {
+                    read(file, start, queue);
+                } catch (InterruptedException e) {
+                    // upload() has stopped taking batches, so put() gives up at once
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    last.error = e;
+                } finally {
+                    // Whatever happened, so the calling thread never waits forever
+                    try {
+                        queue.put(last); // an empty batch ends the file
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        Set<String> sent = new HashSet<String>(fileBlocks.getHashes()); // a block repeated within the file goes once
+        StreamSender[] senders = new StreamSender[cluster.size() * streamsPerNode];
+        int[] nextStream = new int[cluster.size()];
+        int checkpointed = fileBlocks.size();
+        long uncheckpointed = 0; // bytes
+        try
+        {
+            while(true)
+            {
+                Batch batch = queue.take();
+                if(batch.error != null)
+                {
+                    rethrow(batch.error);
+                }
+                if(batch.blocks.isEmpty())
+                {
+                    break;
+                }
+                batch.hashing.join();
+                List<String> hashes = Arrays.asList(batch.hashes);
+                for(int i=0; i < hashes.size(); ++i)
+                {
+                    fileBlocks.add(hashes.get(i), batch.offsets[i], batch.blocks.get(i).remaining());
+                    uncheckpointed += batch.blocks.get(i).remaining();
+                }
+                boolean[] present = cluster.hasBlocks(hashes);
+                for(int i=0; i < hashes.size(); ++i)
+                {
+                    String hash = hashes.get(i);
+                    if(present[i] || !sent.add(hash))
+                    {
+                        continue;
+                    }
+                    int node = cluster.nodeFor(hash);
+                    int stream = (node - 1) * streamsPerNode + nextStream[node - 1]++ % streamsPerNode;
+                    if(senders[stream] == null)
+                    {
+                        senders[stream] = new StreamSender();
+                        cluster.asyncStub(node).storeBlockStream(senders[stream]);
+                    }
+                    senders[stream].send(Block.newBuilder().setHash(hash)
+                            .setData(UnsafeByteOperations.unsafeWrap(batch.blocks.get(i))).build());
+                }
+                if(CHECKPOINT_BYTES <= uncheckpointed)
+                {
+                    finish(senders);
+                    journal.record(fileBlocks, checkpointed, fileBlocks.size());
+                    checkpointed = fileBlocks.size();
+                    uncheckpointed = 0;
+                }
+            }
+            finish(senders);
+            journal.record(fileBlocks, checkpointed, fileBlocks.size());
+        }
+        finally
+        {
+            reader.interrupt();
+            for(StreamSender sender : senders)
+            {
+                if(sender != null)
+                {
+                    sender.cancel();
+                }
+            }
+            journal.close();
+        }
+        return fileBlocks;
+    }
+
+    // Throws an error of the reader thread on the calling thread
+    private static void rethrow(Throwable error) throws IOException
+    {
+        if(error instanceof IOException)
+        {
+            throw (IOException)error;
+        }
+        if(error instanceof RuntimeException)
+        {
+            throw (RuntimeException)error;
+        }
+        if(error instanceof Error)
+        {
+            throw (Error)error;
+        }
+        throw new IOException(error);
+    }
+
+    // Drops the checkpoints of an upload whose blocklist ModifyFile took
+    public void forget(File file)
+    {
+        journalFile(file).delete();
+    }
+
+    private static File journalFile(File file)
+    {
+        return new File(file.getAbsoluteFile().getParentFile(), LocalIndex.PREFIX + file.getName() + ".upload");
+    }
+
+    // Adds the blocks an earlier run checkpointed, which must start the
+    // file without gaps, and returns where the rest of the file starts
+    private static long resume(TransferJournal journal, FileBlocks fileBlocks)
+    {
+        FileBlocks done = journal.getBlocks();
+        long end = 0;
+        for(int i=0; i < done.size(); ++i)
+        {
+            if(done.getOffset(i) != end)
+            {
+                journal.reset();
+                return 0;
+            }
+            end += done.getLength(i);
+        }
+        if(end == 0)
+        {
+            return 0; // an empty file is read again, it has no blocks to skip
+        }
+        for(int i=0; i < done.size(); ++i)
+        {
+            fileBlocks.add(done.getHash(i), done.getOffset(i), done.getLength(i));
+        }
+        return end;
+    }
+
+    // Waits until every stream's blocks are stored; the next block opens new streams
+    private static void finish(StreamSender[] senders) throws InterruptedException
+    {
+        for(int i=0; i < senders.length; ++i)
+        {
+            if(senders[i] != null)
+            {
+                senders[i].finish();
+                senders[i] = null;
+            }
+        }
+    }
+
+    // Uploads some blocks of a file again, e.g. after ModifyFile still
+    // reported them missing. Only those blocks are read from the file.
+    public void resend(File file, FileBlocks fileBlocks, List<String> missing) throws IOException
+    {
+        Set<String> wanted = new HashSet<String>(missing);
+        List<Block> blocks = new ArrayList<Block>();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            for(int i=0; i < fileBlocks.size() && !wanted.isEmpty(); ++i)
+            {
+                String hash = fileBlocks.getHash(i);
+                if(wanted.remove(hash))
+                {
+                    ByteBuffer data = fileBlocks.read(channel, i);
+                    blocks.add(Block.newBuilder().setHash(hash).setData(UnsafeByteOperations.unsafeWrap(data)).build());
+                }
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        cluster.storeBlocks(blocks);
+    }
+
+    // An empty file is a single empty block, as it always was
+    private void read(File file, long start, BlockingQueue<Batch> queue) throws IOException, InterruptedException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            if(channel.size() < start)
+            {
+                throw new IOException(file + " shrank during the upload");
+            }
+            BlockChunker.Scanner scanner = chunker.scanner(channel, start);
+            Batch batch = new Batch();
+            ByteBuffer data = scanner.next();
+            if(data == null && start == 0)
+            {
+                data = ByteBuffer.allocate(0);
+            }
+            for(; data != null; data = scanner.next())
+            {
+                batch.offsets[batch.blocks.size()] = scanner.getOffset();
+                batch.blocks.add(data);
+                if(batch.blocks.size() == BATCH_BLOCKS)
+                {
+                    queue.put(hash(batch));
+                    batch = new Batch();
+                }
+            }
+            if(!batch.blocks.isEmpty())
+            {
+                queue.put(hash(batch));
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    // Starts hashing a batch on the pool; the consumer joins the task
+    private Batch hash(Batch batch)
+    {
+        batch.hashes = new String[batch.blocks.size()];
+        batch.hashing = new HashTask(chunker, batch, 0, batch.blocks.size());
+        pool.execute(batch.hashing);
+        return batch;
+    }
+
+    // One StoreBlockStream. send() waits while the stream is not ready.
+    private static final class StreamSender implements ClientResponseObserver<Block, Empty>
+    {
+        private ClientCallStreamObserver<Block> requests;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+        private boolean finished;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<Block> requests)
+        {
+            this.requests = requests;
+            requests.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    wake();
+                }
+            });
+        }
+
+        synchronized void send(Block block) throws InterruptedException
+        {
+            while(!requests.isReady() && error == null)
+            {
+                wait();
+            }
+            check();
+            requests.onNext(block);
+        }
+
+        void finish() throws InterruptedException
+        {
+            synchronized(this)
+            {
+                finished = true;
+            }
+            requests.onCompleted();
+            done.await();
+            check();
+        }
+
+        synchronized void cancel()
+        {
+            if(!finished)
+            {
+                requests.cancel("upload abandoned", null);
+            }
+        }
+
+        private synchronized void wake()
+        {
+            notifyAll();
+        }
+
+        private void check()
+        {
+            if(error != null)
+            {
+                throw Status.fromThrowable(error).asRuntimeException();
+            }
+        }
+
+        @Override
+        public void onNext(Empty value)
+        {
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            error = t;
+            done.countDown();
+            wake();
+        }
+
+        @Override
+        public void onCompleted()
+        {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package surfstore;
+
+import java.io.IOException;
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Serves reads of hot blocks from a BlockCache in front of another storage.
+ * Writes go straight to the backing storage; a block is cached on its first read.
+ */
+public final class CachingBlockStorage implements BlockStorage
+{
+    private final BlockStorage backing;
+    private final BlockCache cache;
+
+    public CachingBlockStorage(BlockStorage backing, BlockCache cache)
+    {
+        this.backing = backing;
+        this.cache = cache;
+    }
+
+    public BlockCache getCache()
+    {
+        return cache;
+    }
+
+    @Override
+    public void storeBlock(String hash, ByteString data, Compression compression) throws IOException
+    {
+        backing.storeBlock(hash, data, compression);
+    }
+
+    @Override
+    public StoredBlock getBlock(String hash) throws IOException
+    {
+        StoredBlock cached = cache.get(hash);
+        if(cached != null)
+        {
+            return cached;
+        }
+        StoredBlock block = backing.getBlock(hash);
+        if(block != null)
+        {
+            cache.put(hash, block);
+        }
+        return block;
+    }
+
+    @Override
+    public boolean hasBlock(String hash)
+    {
+        return backing.hasBlock(hash);
+    }
+
+    @Override
+    public void deleteBlock(String hash) throws IOException
+    {
+        backing.deleteBlock(hash);
+        cache.invalidate(hash);
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor)
+    {
+        backing.forEachBlock(visitor);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        backing.close();
+    }
+}
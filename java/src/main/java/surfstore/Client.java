@@ -1,27 +1,32 @@
 package surfstore;
 
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.lang.*;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import com.google.protobuf.ByteString;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileRange;
+import surfstore.SurfStoreBasic.BlockRange;
 import surfstore.SurfStoreBasic.Empty;
-import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.WriteResult;
 import surfstore.SurfStoreBasic.SimpleAnswer;
 import surfstore.SurfStoreBasic.NodeList;
@@ -30,30 +35,49 @@ import surfstore.SurfStoreBasic.Index;
 public final class Client 
 {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
+    private static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    private static final int DEFAULT_TRANSFERS = 4;
 
     private final ManagedChannel metadataChannel;
     private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
 
-    private final ManagedChannel blockChannel;
-    private final BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    private final BlockCluster blockCluster;
+    private final BlockChunker chunker;
+    private final BlockUploader uploader;
+    private final BlockDownloader downloader;
+    private final ForkJoinPool hashPool;
+    private final int maxInFlight;
+    private final int transfers;
 
     private final ConfigReader config;
-    protected HashMap<String, byte[]> clientMap;
 
     private String m_functionName;
     private String m_filePath;
     private String m_fileName;
+    private long m_offset;
+    private long m_length;
 
-    public Client(ConfigReader config) 
+    public Client(ConfigReader config)
+    {
+        this(config, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT, DEFAULT_TRANSFERS);
+    }
+
+    // "threads" hash blocks in parallel; at most "maxInFlight" block RPCs
+    // are outstanding per file, and sync moves "transfers" files at once
+    public Client(ConfigReader config, int threads, int maxInFlight, int transfers)
     {
         this.metadataChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(config.getLeaderNum())).usePlaintext(true).build();
         this.metadataStub = MetadataStoreGrpc.newBlockingStub(metadataChannel);
 
-        this.blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort()).usePlaintext(true).build();
-        this.blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+        this.blockCluster = new BlockCluster(config);
+        this.chunker = BlockChunker.parse(config.getChunking()).withHash(BlockHash.parse(config.getHash()));
+        this.hashPool = new ForkJoinPool(threads);
+        this.maxInFlight = maxInFlight;
+        this.uploader = new BlockUploader(blockCluster, chunker, hashPool, maxInFlight);
+        this.downloader = new BlockDownloader(blockCluster, chunker, maxInFlight);
+        this.transfers = transfers;
 
         this.config = config;
-        clientMap = new HashMap<String, byte[]>();
     }
 
     public void setFunctionName(String name)
@@ -66,6 +90,12 @@ public final class Client
         m_filePath = name;
     }
 
+    public void setRange(long offset, long length)
+    {
+        m_offset = offset;
+        m_length = length;
+    }
+
     public void setFileName(String name)
     {
         m_fileName = name;
@@ -89,38 +119,8 @@ public final class Client
     public void shutdown() throws InterruptedException 
     {
         metadataChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-        blockChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-    }
-
-    private  Block stringToBlock(String s)
-    {
-        Block.Builder builder = Block.newBuilder();
-        try
-        {
-            builder.setData(ByteString.copyFrom(s, "UTF-8"));
-        } 
-        catch(UnsupportedEncodingException e)
-        {
-            throw new RuntimeException(e);
-        }
-        builder.setHash(this.generateHash(s));
-        return builder.build(); 
-    }
-    
-    public String generateHash(String s)
-    {
-        MessageDigest digest = null;
-        try
-        {
-            digest = MessageDigest.getInstance("SHA-256");
-        }
-        catch(NoSuchAlgorithmException e)
-        {
-            e.printStackTrace();
-        }
-        byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
-        String encoded = Base64.getEncoder().encodeToString(hash);
-        return encoded;
+        blockCluster.shutdown();
+        hashPool.shutdown();
     }
 
 	private void go() 
@@ -141,6 +141,12 @@ public final class Client
             case "upload":
                 this.updating(m_fileName);
                 break;
+            case "sync":
+                this.syncDirectory(m_fileName);
+                break;
+            case "read":
+                this.readRange(m_fileName, m_offset, m_length, m_filePath);
+                break;
             default:
                 break;
         }
@@ -160,14 +166,14 @@ public final class Client
         while(continueBool)
         {
             int result = this.updateFile(filepath);
-            if(result == 0 || result == 2)
+            if(result == 0 || result == 2 || result == 3)
             {
                 continueBool = false;
                 if(result == 0)
                 {
                     System.out.println("NOT_LEADER");
                 }
-                else
+                else if(result == 2)
                 {
                     System.out.println("OK");
                 }
@@ -175,128 +181,206 @@ public final class Client
         }
     }
 
+    // Returns 0 if the server is not the leader, 2 once the file is
+    // stored and 3 if the file could not be read
     public int updateFile(String filePath) //The absolute path should be passed.
     {
         File file = new File(filePath);
         String fileName = file.getName();
-        FileInfo sendInfo = FileInfo.newBuilder().setFilename(fileName).build();
-        FileInfo recvInfo = metadataStub.readFile(sendInfo);
-        int fileVersion = recvInfo.getVersion();
-        ++fileVersion;
-        Vector<String> hashList = generateHashList(filePath);
-        FileInfo.Builder finalInfo = FileInfo.newBuilder();
-        finalInfo.setFilename(fileName);
-        finalInfo.setVersion(fileVersion);
-        for(int i=0; i < hashList.size(); ++i)
+        FileBlocks blocks;
+        BasicFileAttributes attrs;
+        try
         {
-            finalInfo.addBlocklist(hashList.get(i));
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            // The blocks are already on the block servers when this returns
+            blocks = uploader.upload(file);
         }
-        WriteResult result = metadataStub.modifyFile(finalInfo.build());
-        if(result.getResult() == WriteResult.Result.NOT_LEADER)
+        catch(IOException e)
         {
-            return 0;
+            System.out.println("IOException in updateFile: " + e.getMessage());
+            return 3;
         }
-        if(result.getResult() == WriteResult.Result.OLD_VERSION)
+        catch(InterruptedException e)
         {
-            return 1;
+            Thread.currentThread().interrupt();
+            return 3;
         }
-        if(result.getResult() == WriteResult.Result.MISSING_BLOCKS)
+        // The version the file was last synced at is a guess, not a ReadFile
+        // round-trip; if it is stale, ModifyFile answers with the current one
+        LocalIndex localIndex = LocalIndex.open(file.getAbsoluteFile().getParentFile(), chunker);
+        int version = localIndex.getVersion(fileName);
+        while(true)
         {
-            for(int i=0; i < result.getMissingBlocksCount(); ++i) // fill up missing blocks
+            FileInfo.Builder finalInfo = FileInfo.newBuilder();
+            finalInfo.setFilename(fileName);
+            finalInfo.setVersion(version + 1);
+            finalInfo.addAllBlocklist(blocks.getHashes());
+            finalInfo.addAllBlockSizes(blocks.getLengths());
+            WriteResult result = metadataStub.modifyFile(finalInfo.build());
+            if(result.getResult() == WriteResult.Result.NOT_LEADER)
             {
-                //System.out.println("Adding Blocks");
-                Block.Builder myBlock = Block.newBuilder();
-                myBlock.setData(ByteString.copyFrom(clientMap.get(result.getMissingBlocks(i))));
-                myBlock.setHash(result.getMissingBlocks(i));
-                blockStub.storeBlock(myBlock.build());
+                return 0;
+            }
+            if(result.getResult() == WriteResult.Result.OK)
+            {
+                uploader.forget(file);
+                // A later download into this directory can reuse the blocks without hashing again
+                localIndex.put(fileName, attrs, blocks, finalInfo.getVersion());
+                saveIndex(localIndex);
+                return 2;
+            }
+            if(result.getResult() == WriteResult.Result.OLD_VERSION)
+            {
+                version = result.getCurrentVersion();
+            }
+            if(result.getResult() == WriteResult.Result.MISSING_BLOCKS)
+            {
+                // Only if blocks vanished since the upload, e.g. to the collector
+                try
+                {
+                    uploader.resend(file, blocks, result.getMissingBlocksList());
+                }
+                catch(IOException e)
+                {
+                    System.out.println("IOException in updateFile: " + e.getMessage());
+                    return 3;
+                }
             }
-            return 1;
         }
-        return 2;
     }
 
     public void downloadFile(String fileName, String filePath)
     {
-        FileInfo myFile = FileInfo.newBuilder().setFilename(fileName).build();
-        HashMap<String, byte[]> localMap = new HashMap<String, byte[]>();
         File folder = new File(filePath);
-        String absolute_name = filePath + "/" + fileName;
-        File[] files = folder.listFiles();
-        for(File file : files) 
+        // Only files changed since the last run are hashed again
+        LocalIndex localIndex = LocalIndex.open(folder, chunker);
+        localIndex.refresh();
+        FileInfo newFileInfo = readFile(fileName, localIndex.getSyncedVersion(fileName));
+        if(newFileInfo.getNotModified())
+        {
+            logger.info(fileName + " is up to date");
+        }
+        else if(newFileInfo.getVersion() == 0 || newFileInfo.getBlocklistCount() == 0 || DirectorySync.isDeleted(newFileInfo))
         {
+            System.out.println("Not Found");
+        }
+        else
+        {
+            File target = new File(folder, fileName);
             try
             {
-                String file_name = filePath + "/" + file.getName(); //file_name is path + filename
-                InputStream m_stream = new FileInputStream(file_name);
-                File m_file = new File(file_name);
-                int length = (int)m_file.length();
-                int total = 0;
-                byte[] data = new byte[Math.min(length - total, 4096)];
-                try
-                {
-                    int bytesRead = m_stream.read(data, 0, Math.min(length - total, 4096));
-                    total += bytesRead;
-                    String s = new String(data);
-                    String hashVal = generateHash(s);
-                    localMap.put(hashVal, data); // data is byte[]
-                    while(total < length)
-                    {
-                        byte[] m_data = new byte[Math.min(length - total, 4096)];
-                        bytesRead = m_stream.read(m_data, 0, Math.min(length - total, 4096));
-                        total += bytesRead;
-                        String m_s = new String(m_data);
-                        hashVal = generateHash(m_s);
-                        localMap.put(hashVal, m_data);
-                    }
-                }
-                catch(IOException e)
-                {
-                    System.out.println("IOException");
-                }
+                FileBlocks written = downloader.download(newFileInfo, target, localIndex);
+                localIndex.put(fileName, Files.readAttributes(target.toPath(), BasicFileAttributes.class), written,
+                        newFileInfo.getVersion());
             }
-            catch(FileNotFoundException e)
+            catch(IOException e)
             {
-                System.out.println("FileNotFoundException");
+                System.out.println("IOException");
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
             }
-        } // Gathering all blocks in a current directory is done!
-        FileInfo newFileInfo = metadataStub.readFile(myFile); // newFileInfo contains fileinfo
-        if(newFileInfo.getVersion() == 0 || newFileInfo.getBlocklistCount() == 0 || newFileInfo.getBlocklist(0) == "0")
-        {
-            System.out.println("Not Found");
         }
-        else
+        saveIndex(localIndex);
+    }
+
+    // ReadFile, unless the caller has the file at "version" already and it
+    // is still current: then the answer only says so
+    private FileInfo readFile(String fileName, int version)
+    {
+        if(0 < version)
         {
             try
             {
-                FileOutputStream outputStream = new FileOutputStream(absolute_name);
-                for(int i=0; i < newFileInfo.getBlocklistCount(); ++i) // getting every hash value
+                return BlockHash.withNames(metadataStub.readFileIfModified(
+                        FileInfo.newBuilder().setFilename(fileName).setVersion(version).setAcceptDigests(true).build()));
+            }
+            catch(StatusRuntimeException e)
+            {
+                // An older MetadataStore, or a follower: ask the plain way
+                if(e.getStatus().getCode() != Status.Code.UNIMPLEMENTED
+                        && e.getStatus().getCode() != Status.Code.FAILED_PRECONDITION)
                 {
-                    byte[] myBlock;
-                    if(!localMap.containsKey(newFileInfo.getBlocklist(i))) // Should get a block from the block store
-                    {
-                        Block t_block = Block.newBuilder().setHash(newFileInfo.getBlocklist(i)).build();
-                        Block s_block = blockStub.getBlock(t_block);
-                        myBlock = s_block.getData().toByteArray();
-                    }
-                    else
-                    {
-                        myBlock = localMap.get(newFileInfo.getBlocklist(i));
-                    }
-                    try
-                    {
-                        outputStream.write(myBlock);
-                    }
-                    catch(IOException e)
-                    {
-                        System.out.println("IOException");
-                    }
+                    throw e;
                 }
             }
-            catch(FileNotFoundException e)
+        }
+        return BlockHash.withNames(metadataStub.readFile(FileInfo.newBuilder().setFilename(fileName).setAcceptDigests(true).build()));
+    }
+
+    private void saveIndex(LocalIndex localIndex)
+    {
+        try
+        {
+            localIndex.save();
+        }
+        catch(IOException e)
+        {
+            logger.warning("Could not save the local block index: " + e.getMessage());
+        }
+    }
+
+    // Writes "length" bytes of a file from "offset" on, or up to its end, to
+    // "outputPath". Only the blocks holding them are fetched.
+    public void readRange(String fileName, long offset, long length, String outputPath)
+    {
+        if(outputPath == null)
+        {
+            System.out.println("Usage: read FILE_NAME OUTPUT_FILE [--offset N] [--length N]");
+            return;
+        }
+        try
+        {
+            BlockRange range = metadataStub.readFileRange(FileRange.newBuilder().setFilename(fileName)
+                    .setOffset(offset).setLength(length).setAcceptDigests(true).build());
+            FileInfo blocks = BlockHash.withNames(range.getFile());
+            if(blocks.getVersion() == 0 || DirectorySync.isDeleted(blocks))
             {
-                System.out.println("FileNotFoundException");
+                System.out.println("Not Found");
+                return;
             }
-            //outputStream.close();
+            RandomAccessFile output = new RandomAccessFile(outputPath, "rw");
+            try
+            {
+                long read = downloader.readRange(blocks, range.getOffset(), offset, length, output);
+                System.out.println("Read " + read + " of " + range.getSize() + " bytes");
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch(StatusRuntimeException e)
+        {
+            System.out.println(e.getStatus().getDescription());
+        }
+        catch(IOException e)
+        {
+            System.out.println("IOException in readRange: " + e.getMessage());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void syncDirectory(String directory)
+    {
+        DirectorySync sync = new DirectorySync(metadataStub, uploader, downloader, chunker, transfers);
+        try
+        {
+            boolean complete = sync.sync(new File(directory));
+            System.out.println(sync);
+            System.out.println(complete ? "OK" : "INCOMPLETE");
+        }
+        catch(IOException e)
+        {
+            System.out.println("IOException in syncDirectory: " + e.getMessage());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -335,39 +419,16 @@ public final class Client
         Vector<String> retVec = new Vector<String>();
         try
         {
-            InputStream m_stream = new FileInputStream(filePath);
-            File file = new File(filePath);
-            int length = (int)file.length();
-            int total = 0;
-            byte[] data = new byte[Math.min(length - total, 4096)];
-            try
-            {
-                int bytesRead = m_stream.read(data, 0, Math.min(length - total, 4096));
-                total += bytesRead;
-                String s = new String(data);
-                String hashVal = generateHash(s);
-                clientMap.put(hashVal, data);
-                retVec.add(hashVal);
-                while(total < length)
-                {
-                    byte[] m_data = new byte[Math.min(length - total, 4096)];
-                    bytesRead = m_stream.read(m_data, 0, Math.min(length - total, 4096));
-                    total += bytesRead;
-                    String m_s = new String(m_data);
-                    hashVal = generateHash(m_s);
-                    clientMap.put(hashVal, m_data);
-                    retVec.add(hashVal);
-                }
-            }
-            catch(IOException e)
-            {
-                System.out.println("IOException in generateHashList");
-            }
+            retVec.addAll(FileBlocks.scan(new File(filePath), chunker).getHashes());
         }
-        catch(FileNotFoundException e)
+        catch(FileNotFoundException | NoSuchFileException e)
         {
             System.out.println("FileNotFoundException in generateHashList");
         }
+        catch(IOException e)
+        {
+            System.out.println("IOException in generateHashList");
+        }
         return retVec;
     }
 	/*
@@ -379,10 +440,17 @@ public final class Client
         parser.addArgument("config_file").type(String.class).help("Path to configuration file");
         parser.addArgument("method_name").type(String.class).help("METHOD_NAME");
         parser.addArgument("file_name").type(String.class).help("FILE_NAME");
-        if(3 < args.length)
-        {
-            parser.addArgument("file_path").type(String.class).help("FILE_PATH");
-        }
+        parser.addArgument("file_path").type(String.class).nargs("?").help("FILE_PATH");
+        parser.addArgument("--threads").type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors())
+                .help("Threads that hash blocks");
+        parser.addArgument("--max_inflight").type(Integer.class).setDefault(DEFAULT_MAX_IN_FLIGHT)
+                .help("Maximum number of block transfer calls outstanding at once");
+        parser.addArgument("--transfers").type(Integer.class).setDefault(DEFAULT_TRANSFERS)
+                .help("Files transferred at once by sync");
+        parser.addArgument("--offset").type(Long.class).setDefault(0L)
+                .help("First byte to read");
+        parser.addArgument("--length").type(Long.class).setDefault(0L)
+                .help("Bytes to read, 0 for the rest of the file");
         Namespace res = null;
         try 
         {
@@ -407,14 +475,15 @@ public final class Client
         //System.out.println(c_args.getString("path"));
         ConfigReader config = new ConfigReader(configf);
         //System.out.println("Client Constructor");
-        Client client = new Client(config);
+        Client client = new Client(config, c_args.getInt("threads"), c_args.getInt("max_inflight"), c_args.getInt("transfers"));
         //System.out.println("Leader Number: "+config.getLeaderNum());
         client.setFunctionName(c_args.getString("method_name"));
         client.setFileName(c_args.getString("file_name"));
-        if(3 < args.length)
+        if(c_args.getString("file_path") != null)
         {
             client.setFilePath(c_args.getString("file_path"));
         }
+        client.setRange(c_args.getLong("offset"), c_args.getLong("length"));
         try 
         {
         	client.go();
@@ -11,14 +11,18 @@ public final class ConfigReader {
     private static final String numMetadataMatchStr = "M(:|=)\\s*(?<numMetadata>\\d+)";
     private static final String leaderNumMatchStr = "L(:|=)\\s*(?<leaderNum>\\d+)";
     private static final String metadataInstMatchStr = "metadata(?<metadataId>\\d+)(:|=)\\s*(?<metadataPort>\\d+)";
-    private static final String blockInstMatchStr = "block(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String blockInstMatchStr = "block(?<blockId>\\d*)(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String chunkingMatchStr = "chunking(:|=)\\s*(?<chunking>[a-z]+(\\s+\\d+)*)";
+    private static final String hashMatchStr = "hash(:|=)\\s*(?<hash>[a-z0-9-]+)";
     
     private static final Pattern configMatcher = Pattern.compile(
-            String.format("((%s)|(%s)|(%s)|(%s))\\s*",
+            String.format("((%s)|(%s)|(%s)|(%s)|(%s)|(%s))\\s*",
                 numMetadataMatchStr,
                 metadataInstMatchStr,
                 blockInstMatchStr,
-                leaderNumMatchStr
+                leaderNumMatchStr,
+                chunkingMatchStr,
+                hashMatchStr
             ));
 
     protected File configFile;
@@ -26,8 +30,10 @@ public final class ConfigReader {
     
     public Integer numMetadataServers;
     public HashMap<Integer, Integer> metadataPorts;
-    public Integer blockPort;
+    public HashMap<Integer, Integer> blockPorts;
     public Integer leaderNum;
+    public String chunking;
+    public String hash;
     
 	public ConfigReader(File configFile) throws FileNotFoundException {
 		if (!configFile.exists()) {
@@ -51,6 +57,7 @@ public final class ConfigReader {
 
 	protected void parseConfigFile() {
         metadataPorts = new HashMap<Integer, Integer>();
+        blockPorts = new HashMap<Integer, Integer>();
 
         for(String line : config.split("\\r?\\n")) {
             Matcher result = configMatcher.matcher(line);
@@ -64,14 +71,20 @@ public final class ConfigReader {
             } else if (result.group("metadataId") != null) {
                 metadataPorts.put(Integer.parseInt(result.group("metadataId")),
                                   Integer.parseInt(result.group("metadataPort")));
+            } else if (result.group("chunking") != null) {
+                chunking = result.group("chunking");
+            } else if (result.group("hash") != null) {
+                hash = result.group("hash");
             } else if (result.group("blockPort") != null) {
-                blockPort = Integer.parseInt(result.group("blockPort"));
+                // A bare "block:" line is the first (and usually only) block server
+                int blockId = result.group("blockId").isEmpty() ? 1 : Integer.parseInt(result.group("blockId"));
+                blockPorts.put(blockId, Integer.parseInt(result.group("blockPort")));
             } else{
                 System.err.println("ConfigReader: Invalid line:\n" + line);
             }
         }
 
-        if (numMetadataServers == null || blockPort == null || leaderNum == null) {
+        if (numMetadataServers == null || blockPorts.isEmpty() || leaderNum == null) {
             throw new RuntimeException("Config file is missing one or more required lines!");
         }
 
@@ -79,6 +92,11 @@ public final class ConfigReader {
             if (!metadataPorts.containsKey(i))
                 throw new RuntimeException("Must set port for metadata" + i);
         }
+
+        for(int i = 1; i <= blockPorts.size(); i++){
+            if (!blockPorts.containsKey(i))
+                throw new RuntimeException("Block servers must be numbered block1 to block" + blockPorts.size());
+        }
     }
 
     public int getNumMetadataServers() {
@@ -89,10 +107,28 @@ public final class ConfigReader {
         return metadataPorts.get(serverId);
     }
 
+    public int getNumBlockServers() {
+        return blockPorts.size();
+    }
+
+    public int getBlockPort(int serverId) {
+        return blockPorts.get(serverId);
+    }
+
     public int getBlockPort() {
-        return blockPort;
+        return getBlockPort(1);
     }
     
+    // How clients split files into blocks; see BlockChunker
+    public String getChunking() {
+        return chunking != null ? chunking : BlockChunker.DEFAULT_SPEC;
+    }
+
+    // How clients name blocks; see BlockHash
+    public String getHash() {
+        return hash != null ? hash : BlockHash.DEFAULT_SPEC;
+    }
+
     public int getLeaderNum() {
     	return leaderNum;
     }
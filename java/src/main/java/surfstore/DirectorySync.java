@@ -0,0 +1,334 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import io.grpc.StatusRuntimeException;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileInfoList;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * Syncs a local directory tree with the MetadataStore. Files are named by
+ * their path below the directory, with "/" between names.
+ *
+ * Each file's local state is compared with the snapshot of the last sync,
+ * a tree LocalIndex, and with its version on the MetadataStore:
+ * - changed only locally: uploaded as the next version, or deleted
+ * - changed only remotely: downloaded, or deleted locally
+ * - changed on both sides: the MetadataStore wins and the local file is
+ *   kept next to it as NAME.conflict-TIME, a new file for the next sync.
+ *   A local change does win over a remote delete.
+ *
+ * Finding what changed costs a stat per local file, a hash of each file
+ * whose size or time moved, one ListFiles stream and ReadFiles batches for
+ * the files to download. The transfers run "transfers" at a time.
+ */
+public final class DirectorySync
+{
+    private static final Logger logger = Logger.getLogger(DirectorySync.class.getName());
+    private static final int READ_BATCH = 256; // files per ReadFiles call
+
+    private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
+    private final BlockUploader uploader;
+    private final BlockDownloader downloader;
+    private final BlockChunker chunker;
+    private final int transfers;
+
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public DirectorySync(MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub, BlockUploader uploader,
+            BlockDownloader downloader, BlockChunker chunker, int transfers)
+    {
+        this.metadataStub = metadataStub;
+        this.uploader = uploader;
+        this.downloader = downloader;
+        this.chunker = chunker;
+        this.transfers = transfers;
+    }
+
+    // Returns false if some file could not be synced; the next sync tries again
+    public boolean sync(File root) throws InterruptedException, IOException
+    {
+        LocalIndex index = LocalIndex.openTree(root, chunker);
+        Map<String, Integer> synced = index.getVersions();
+        index.refresh();
+        Map<String, Integer> local = index.getVersions();
+        Set<String> changed = index.getChanged();
+        Map<String, FileInfo> remote = listFiles();
+
+        Set<String> names = new HashSet<String>(synced.keySet());
+        names.addAll(local.keySet());
+        names.addAll(remote.keySet());
+        List<String> downloads = new ArrayList<String>();
+        ExecutorService pool = Executors.newFixedThreadPool(transfers);
+        try
+        {
+            for(String name : names)
+            {
+                if(!isValidName(name))
+                {
+                    logger.warning("Skipping file with an unusable name: " + name);
+                    continue;
+                }
+                Integer base = synced.containsKey(name) ? synced.get(name) : local.get(name);
+                int syncedVersion = base == null ? 0 : base;
+                FileInfo info = remote.get(name);
+                int remoteVersion = info == null ? 0 : info.getVersion();
+                boolean remoteDeleted = info != null && isDeleted(info);
+                boolean localExists = local.containsKey(name);
+                boolean localChanged = localExists && changed.contains(name);
+
+                if(remoteVersion == syncedVersion || (remoteVersion == 0 && localExists))
+                {
+                    // Nothing changed remotely, or the MetadataStore has never seen the file
+                    if(localChanged || (localExists && remoteVersion == 0))
+                    {
+                        upload(pool, index, name, remoteVersion + 1);
+                    }
+                    else if(!localExists && 0 < syncedVersion && 0 < remoteVersion && !remoteDeleted)
+                    {
+                        delete(pool, name, remoteVersion + 1);
+                    }
+                }
+                else if(remoteDeleted)
+                {
+                    if(localChanged)
+                    {
+                        upload(pool, index, name, remoteVersion + 1);
+                    }
+                    else if(localExists)
+                    {
+                        deleteLocal(index, name);
+                    }
+                }
+                else if(0 < remoteVersion)
+                {
+                    if(!localChanged || keepConflict(index, name))
+                    {
+                        downloads.add(name);
+                    }
+                }
+            }
+            download(pool, index, downloads);
+        }
+        finally
+        {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            index.save();
+        }
+        return failed.get() == 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Uploaded " + uploaded + ", downloaded " + downloaded + ", deleted " + deleted
+                + ", conflicts " + conflicts + ", failed " + failed;
+    }
+
+    private Map<String, FileInfo> listFiles()
+    {
+        Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+        Iterator<FileInfoList> pages = metadataStub.listFiles(Empty.newBuilder().build());
+        while(pages.hasNext())
+        {
+            for(FileInfo file : pages.next().getFilesList())
+            {
+                files.put(file.getFilename(), file);
+            }
+        }
+        return files;
+    }
+
+    private void upload(ExecutorService pool, final LocalIndex index, final String name, final int version)
+    {
+        pool.execute(new Transfer(name) {
+            @Override
+            void transfer() throws IOException, InterruptedException {
+                File file = index.getFile(name);
+                BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                FileBlocks blocks = uploader.upload(file);
+                FileInfo request = FileInfo.newBuilder().setFilename(name).setVersion(version)
+                        .addAllBlocklist(blocks.getHashes()).addAllBlockSizes(blocks.getLengths()).build();
+                WriteResult result = metadataStub.modifyFile(request);
+                while (result.getResult() == WriteResult.Result.MISSING_BLOCKS) {
+                    // Only if blocks vanished since the upload, e.g. to the collector
+                    uploader.resend(file, blocks, result.getMissingBlocksList());
+                    result = metadataStub.modifyFile(request);
+                }
+                uploader.forget(file);
+                if (check(name, result)) {
+                    index.put(name, attrs, blocks, version);
+                    uploaded.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void delete(ExecutorService pool, final String name, final int version)
+    {
+        pool.execute(new Transfer(name) {
+            @Override
+            void transfer() {
+                WriteResult result = metadataStub.deleteFile(FileInfo.newBuilder().setFilename(name).setVersion(version).build());
+                if (check(name, result)) {
+                    deleted.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    // Blocklists are read in batches, then the files are downloaded
+    private void download(ExecutorService pool, final LocalIndex index, List<String> names)
+    {
+        for(int from=0; from < names.size(); from += READ_BATCH)
+        {
+            FileInfoList.Builder request = FileInfoList.newBuilder();
+            for(String name : names.subList(from, Math.min(names.size(), from + READ_BATCH)))
+            {
+                request.addFiles(FileInfo.newBuilder().setFilename(name).setAcceptDigests(true));
+            }
+            Iterator<FileInfo> files = metadataStub.readFiles(request.build());
+            while(files.hasNext())
+            {
+                final FileInfo info = BlockHash.withNames(files.next());
+                if(info.getVersion() == 0 || isDeleted(info))
+                {
+                    continue; // deleted since it was listed; the next sync sees it
+                }
+                pool.execute(new Transfer(info.getFilename()) {
+                    @Override
+                    void transfer() throws IOException, InterruptedException {
+                        File target = index.getFile(info.getFilename());
+                        target.getParentFile().mkdirs();
+                        FileBlocks blocks = downloader.download(info, target, index);
+                        index.put(info.getFilename(), Files.readAttributes(target.toPath(), BasicFileAttributes.class),
+                                blocks, info.getVersion());
+                        downloaded.incrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    private void deleteLocal(LocalIndex index, String name)
+    {
+        if(index.getFile(name).delete())
+        {
+            index.remove(name);
+            deleted.incrementAndGet();
+        }
+        else
+        {
+            logger.warning("Could not delete " + index.getFile(name));
+            failed.incrementAndGet();
+        }
+    }
+
+    // Moves a locally changed file out of the way of its remote version
+    private boolean keepConflict(LocalIndex index, String name)
+    {
+        File file = index.getFile(name);
+        File copy = new File(file.getParentFile(), file.getName() + ".conflict-" + System.currentTimeMillis());
+        try
+        {
+            Files.move(file.toPath(), copy.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            logger.warning("Could not move " + file + " out of the way: " + e.getMessage());
+            failed.incrementAndGet();
+            return false;
+        }
+        index.remove(name);
+        conflicts.incrementAndGet();
+        logger.warning(name + " changed both here and remotely; the local copy is now " + copy.getName());
+        return true;
+    }
+
+    // True if a write went through. Any other result means the file changed
+    // remotely in the meantime, which the next sync sorts out.
+    private boolean check(String name, WriteResult result)
+    {
+        if(result.getResult() == WriteResult.Result.OK)
+        {
+            return true;
+        }
+        logger.warning("Could not sync " + name + ": " + result.getResult());
+        conflicts.incrementAndGet();
+        return false;
+    }
+
+    // True for the "0" blocklist of a deleted file
+    static boolean isDeleted(FileInfo info)
+    {
+        return info.getBlocklistCount() == 1 && "0".equals(info.getBlocklist(0));
+    }
+
+    // Remote names must stay inside the directory
+    private static boolean isValidName(String name)
+    {
+        for(String part : name.split("/", -1))
+        {
+            if(part.isEmpty() || ".".equals(part) || "..".equals(part) || part.indexOf('\\') != -1
+                    || LocalIndex.isInternal(part))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One file's transfer; a failure is counted and does not stop the others
+    private abstract class Transfer implements Runnable
+    {
+        private final String name;
+
+        Transfer(String name)
+        {
+            this.name = name;
+        }
+
+        abstract void transfer() throws IOException, InterruptedException;
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                transfer();
+            }
+            catch(IOException | StatusRuntimeException e)
+            {
+                logger.warning("Could not sync " + name + ": " + e.getMessage());
+                failed.incrementAndGet();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                failed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The blocks of one local file in file order: the hash, offset and length
+ * of each. Only where a block is gets kept; its bytes are read from the
+ * file again when they are needed.
+ */
+public final class FileBlocks
+{
+    private final ArrayList<String> hashes = new ArrayList<String>();
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+
+    public void add(String hash, long offset, int length)
+    {
+        int i = hashes.size();
+        if(i == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, i * 2);
+            lengths = Arrays.copyOf(lengths, i * 2);
+        }
+        hashes.add(hash);
+        offsets[i] = offset;
+        lengths[i] = length;
+    }
+
+    public int size()
+    {
+        return hashes.size();
+    }
+
+    public String getHash(int i)
+    {
+        return hashes.get(i);
+    }
+
+    public long getOffset(int i)
+    {
+        return offsets[i];
+    }
+
+    public int getLength(int i)
+    {
+        return lengths[i];
+    }
+
+    // The blocklist of the file
+    public List<String> getHashes()
+    {
+        return Collections.unmodifiableList(hashes);
+    }
+
+    public List<Integer> getLengths()
+    {
+        List<Integer> list = new ArrayList<Integer>(hashes.size());
+        for(int i=0; i < hashes.size(); ++i)
+        {
+            list.add(lengths[i]);
+        }
+        return list;
+    }
+
+    // Reads block "i" from the file
+    public ByteBuffer read(FileChannel channel, int i) throws IOException
+    {
+        return read(channel, offsets[i], lengths[i]);
+    }
+
+    public static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while(data.hasRemaining())
+        {
+            if(channel.read(data, offset + data.position()) < 0)
+            {
+                throw new IOException("File shrank while reading a block at " + offset);
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    // Splits and hashes a file on the calling thread. An empty file is a
+    // single empty block, as it always was.
+    public static FileBlocks scan(File file, BlockChunker chunker) throws IOException
+    {
+        FileBlocks blocks = new FileBlocks();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            BlockChunker.Scanner scanner = chunker.scanner(channel);
+            for(ByteBuffer data = scanner.next(); data != null; data = scanner.next())
+            {
+                blocks.add(chunker.hash(data), scanner.getOffset(), data.remaining());
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        if(blocks.size() == 0)
+        {
+            blocks.add(chunker.hash(ByteBuffer.allocate(0)), 0, 0);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,166 @@
+package surfstore;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * What a MetadataStore knows of one file: its version, its blocklist and
+ * the size of each block. A record never changes; a write replaces it with
+ * a new one, so a reader always sees one whole version of the file.
+ *
+ * Block names are kept as their raw digests, all in one array, and only
+ * encoded when they are read as names: a MetadataStore holds millions of
+ * records, and a String per block would take several times the memory.
+ * Blocklists that are not all digests, such as a deleted file's "0", are
+ * kept as they are.
+ *
+ * Block sizes are only kept if the writer sent one for every block.
+ */
+public final class FileRecord
+{
+    private static final int DIGEST_SIZE = 32;
+    private static final List<String> NO_BLOCKS = Collections.singletonList("0");
+    private static final int[] NO_SIZES = new int[0];
+
+    // A file that has been asked for but never written
+    public static final FileRecord NONE = new FileRecord(0, NO_BLOCKS, null, NO_SIZES);
+
+    private final int version;
+    private final List<String> names; // null if the blocks are kept as digests
+    private final byte[] digests;
+    private final int[] sizes;
+
+    private FileRecord(int version, List<String> names, byte[] digests, int[] sizes)
+    {
+        this.version = version;
+        this.names = names;
+        this.digests = digests;
+        this.sizes = sizes;
+    }
+
+    // The version, blocklist and sizes of "info", whose lists are immutable
+    // already. The blocklist may come as names or as digests.
+    public static FileRecord of(FileInfo info)
+    {
+        byte[] digests = null;
+        List<String> names = null;
+        if(0 < info.getBlockDigestsCount())
+        {
+            byte[] all = new byte[info.getBlockDigestsCount() * DIGEST_SIZE];
+            for(int i=0; i < info.getBlockDigestsCount() && all != null; ++i)
+            {
+                ByteString digest = info.getBlockDigests(i);
+                if(digest.size() == DIGEST_SIZE)
+                {
+                    digest.copyTo(all, i * DIGEST_SIZE);
+                }
+                else
+                {
+                    all = null;
+                }
+            }
+            digests = all;
+            if(all == null)
+            {
+                names = BlockHash.fromDigests(info.getBlockDigestsList());
+            }
+        }
+        else
+        {
+            digests = BlockHash.pack(info.getBlocklistList());
+            if(digests == null)
+            {
+                names = info.getBlocklistList();
+            }
+        }
+        int count = names == null ? digests.length / DIGEST_SIZE : names.size();
+        int[] sizes = NO_SIZES;
+        if(0 < count && info.getBlockSizesCount() == count)
+        {
+            sizes = new int[count];
+            for(int i=0; i < count; ++i)
+            {
+                sizes[i] = info.getBlockSizes(i);
+            }
+        }
+        return new FileRecord(info.getVersion(), names, digests, sizes);
+    }
+
+    public static FileRecord deleted(int version)
+    {
+        return new FileRecord(version, NO_BLOCKS, null, NO_SIZES);
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    // The blocklist; names kept as digests are encoded each time they are read
+    public List<String> getBlocks()
+    {
+        if(names != null)
+        {
+            return names;
+        }
+        return new AbstractList<String>() {
+            @Override
+            public String get(int i) {
+                return Base64.getEncoder().encodeToString(Arrays.copyOfRange(digests, i * DIGEST_SIZE, (i + 1) * DIGEST_SIZE));
+            }
+
+            @Override
+            public int size() {
+                return digests.length / DIGEST_SIZE;
+            }
+        };
+    }
+
+    public int getBlockCount()
+    {
+        return names == null ? digests.length / DIGEST_SIZE : names.size();
+    }
+
+    // Adds blocks "from" to "to" to "info", as raw digests if "raw" and the
+    // blocks have them
+    public void addBlocklist(FileInfo.Builder info, int from, int to, boolean raw)
+    {
+        if(raw && names == null)
+        {
+            for(int i=from; i < to; ++i)
+            {
+                info.addBlockDigests(UnsafeByteOperations.unsafeWrap(digests, i * DIGEST_SIZE, DIGEST_SIZE));
+            }
+        }
+        else
+        {
+            info.addAllBlocklist(getBlocks().subList(from, to));
+        }
+    }
+
+    // Empty if the writer sent no sizes
+    public List<Integer> getSizes()
+    {
+        return Ints.asList(sizes);
+    }
+
+    public boolean isDeleted()
+    {
+        return names != null && names.size() == 1 && "0".equals(names.get(0));
+    }
+
+    // With the blocklist as digests where it can be
+    public FileInfo toFileInfo(String filename)
+    {
+        FileInfo.Builder info = FileInfo.newBuilder().setFilename(filename).setVersion(version);
+        addBlocklist(info, 0, getBlockCount(), true);
+        return info.addAllBlockSizes(getSizes()).build();
+    }
+}
@@ -0,0 +1,137 @@
+package surfstore;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Answers lookups of blocks that were never stored from a BlockFilter,
+ * without touching the index or the disk of the storage behind it.
+ *
+ * The filter is filled from the backing storage when this is created and
+ * updated on every store. Deleted blocks stay in the filter and simply
+ * cost a real lookup, like any other false positive.
+ */
+public final class FilteredBlockStorage implements BlockStorage
+{
+    private final BlockStorage backing;
+    private final BlockFilter filter;
+
+    private final AtomicLong filtered = new AtomicLong(); // misses answered by the filter
+    private final AtomicLong falsePositives = new AtomicLong(); // misses the filter let through
+
+    public FilteredBlockStorage(BlockStorage backing, BlockFilter filter)
+    {
+        this.backing = backing;
+        this.filter = filter;
+        backing.forEachBlock(new BlockVisitor() {
+            @Override
+            public void visit(String hash) {
+                FilteredBlockStorage.this.filter.add(BlockIndex.decodeHash(hash));
+            }
+        });
+    }
+
+    public BlockFilter getFilter()
+    {
+        return filter;
+    }
+
+    @Override
+    public void storeBlock(String hash, ByteString data, Compression compression) throws IOException
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        if(digest != null)
+        {
+            // Added first, so a concurrent lookup never misses a stored block
+            filter.add(digest);
+        }
+        backing.storeBlock(hash, data, compression);
+    }
+
+    @Override
+    public StoredBlock getBlock(String hash) throws IOException
+    {
+        if(!mightContain(hash))
+        {
+            return null;
+        }
+        StoredBlock block = backing.getBlock(hash);
+        if(block == null)
+        {
+            falsePositives.incrementAndGet();
+        }
+        return block;
+    }
+
+    @Override
+    public boolean hasBlock(String hash)
+    {
+        if(!mightContain(hash))
+        {
+            return false;
+        }
+        boolean found = backing.hasBlock(hash);
+        if(!found)
+        {
+            falsePositives.incrementAndGet();
+        }
+        return found;
+    }
+
+    @Override
+    public void deleteBlock(String hash) throws IOException
+    {
+        backing.deleteBlock(hash);
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor)
+    {
+        backing.forEachBlock(visitor);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        backing.close();
+    }
+
+    private boolean mightContain(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        if(digest == null || !filter.mightContain(digest))
+        {
+            filtered.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getFiltered()
+    {
+        return filtered.get();
+    }
+
+    public long getFalsePositives()
+    {
+        return falsePositives.get();
+    }
+
+    // Share of lookups for absent blocks that the filter failed to answer
+    public double getFalsePositiveRate()
+    {
+        long fp = getFalsePositives();
+        long total = fp + getFiltered();
+        return total == 0 ? 0.0 : (double)fp / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("BlockFilter[size=%d bytes, filtered=%d, falsePositives=%d, falsePositiveRate=%.4f, expected=%.4f]",
+                filter.getSizeInBytes(), getFiltered(), getFalsePositives(), getFalsePositiveRate(),
+                filter.getExpectedFalsePositiveRate());
+    }
+}
@@ -0,0 +1,452 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The blocks of every file in a local directory, kept on disk in the
+ * directory itself so they survive the client.
+ *
+ * Each file's entry records its size and modification time. refresh()
+ * only splits and hashes files whose size or time no longer match, so
+ * finding reusable local blocks costs a stat per file instead of reading
+ * the whole directory. An entry written within RACY_WINDOW of the file's
+ * modification time is not trusted: the file could change again without
+ * its time moving, so it is hashed once more on the next refresh.
+ *
+ * A tree index covers every file below its directory under its relative
+ * path, with "/" between names. Sync keeps one as its snapshot of the
+ * last synced state: each file's version on the MetadataStore, and
+ * whether it changed locally since it had that version.
+ *
+ * The index is tied to the chunking it was built with; a client with
+ * another chunker starts over.
+ */
+public final class LocalIndex
+{
+    private static final Logger logger = Logger.getLogger(LocalIndex.class.getName());
+
+    public static final String PREFIX = ".surfstore-"; // files of the client itself, never indexed
+    private static final String INDEX_NAME = PREFIX + "index";
+    private static final String TREE_INDEX_NAME = PREFIX + "sync";
+    private static final int INDEX_MAGIC = 0x53524659;
+    private static final long RACY_WINDOW = 2000;
+
+    private final File directory;
+    private final BlockChunker chunker;
+    private final boolean tree;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private HashMap<String, Location> locations; // built when first needed
+    private boolean dirty;
+
+    private static final class Entry
+    {
+        final long size;
+        final long modified;
+        final long indexed;
+        final int version; // synced with the MetadataStore, 0 if never
+        final boolean changed; // since it had that version
+        final FileBlocks blocks;
+
+        Entry(long size, long modified, long indexed, int version, boolean changed, FileBlocks blocks)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.indexed = indexed;
+            this.version = version;
+            this.changed = changed;
+            this.blocks = blocks;
+        }
+
+        boolean matches(BasicFileAttributes attrs)
+        {
+            return size == attrs.size() && modified == attrs.lastModifiedTime().toMillis()
+                    && modified < indexed - RACY_WINDOW;
+        }
+    }
+
+    // Where a block of a local file is
+    public static final class Location
+    {
+        public final File file;
+        public final long offset;
+        public final int length;
+
+        Location(File file, long offset, int length)
+        {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private LocalIndex(File directory, BlockChunker chunker, boolean tree)
+    {
+        this.directory = directory;
+        this.chunker = chunker;
+        this.tree = tree;
+    }
+
+    // Loads the index of the files directly in a directory; a missing or
+    // unreadable one starts empty
+    public static LocalIndex open(File directory, BlockChunker chunker)
+    {
+        return open(new LocalIndex(directory, chunker, false));
+    }
+
+    // Loads the index of the whole tree below a directory
+    public static LocalIndex openTree(File directory, BlockChunker chunker)
+    {
+        return open(new LocalIndex(directory, chunker, true));
+    }
+
+    private static LocalIndex open(LocalIndex index)
+    {
+        File file = index.indexFile();
+        try
+        {
+            index.load(file);
+        }
+        catch(FileNotFoundException e)
+        {
+            index.entries.clear();
+        }
+        catch(EOFException e)
+        {
+            logger.warning("Index " + file + " is truncated, rebuilding it");
+            index.entries.clear();
+        }
+        catch(IOException e)
+        {
+            logger.log(Level.WARNING, "Could not read index " + file + ", rebuilding it", e);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    public static boolean isInternal(String name)
+    {
+        return name.startsWith(PREFIX);
+    }
+
+    // Brings the index in line with the directory, hashing only files that
+    // are new or changed since they were indexed
+    public synchronized void refresh()
+    {
+        Map<String, BasicFileAttributes> present = list();
+        for(String name : new ArrayList<String>(entries.keySet()))
+        {
+            if(!present.containsKey(name))
+            {
+                remove(name);
+            }
+        }
+        for(Map.Entry<String, BasicFileAttributes> file : present.entrySet())
+        {
+            String name = file.getKey();
+            Entry entry = entries.get(name);
+            if(entry != null && entry.matches(file.getValue()))
+            {
+                continue;
+            }
+            try
+            {
+                // Split the same way as uploads, so unchanged blocks are found locally
+                FileBlocks blocks = FileBlocks.scan(getFile(name), chunker);
+                boolean changed = entry == null || entry.changed || !entry.blocks.getHashes().equals(blocks.getHashes());
+                put(name, new Entry(file.getValue().size(), file.getValue().lastModifiedTime().toMillis(),
+                        System.currentTimeMillis(), entry == null ? 0 : entry.version, changed, blocks));
+            }
+            catch(IOException e)
+            {
+                logger.warning("Could not index " + getFile(name) + ": " + e.getMessage());
+                remove(name);
+            }
+        }
+    }
+
+    // Records the blocks of a file as they are at "version". "attrs" must
+    // have been read before the blocks were, so a change in between shows
+    // up on the next refresh.
+    public synchronized void put(String name, BasicFileAttributes attrs, FileBlocks blocks, int version)
+    {
+        put(name, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), System.currentTimeMillis(), version, false, blocks));
+    }
+
+    public synchronized void remove(String name)
+    {
+        Entry entry = entries.remove(name);
+        if(entry != null)
+        {
+            forget(name, entry);
+            dirty = true;
+        }
+    }
+
+    public synchronized FileBlocks get(String name)
+    {
+        Entry entry = entries.get(name);
+        return entry == null ? null : entry.blocks;
+    }
+
+    // The version a file was last synced at, 0 if it never was
+    public synchronized int getVersion(String name)
+    {
+        Entry entry = entries.get(name);
+        return entry == null ? 0 : entry.version;
+    }
+
+    // The version a file was synced at if it has not changed since, else 0
+    public synchronized int getSyncedVersion(String name)
+    {
+        Entry entry = entries.get(name);
+        return entry == null || entry.changed ? 0 : entry.version;
+    }
+
+    // Names of the files that changed since they were synced, or never were
+    public synchronized Set<String> getChanged()
+    {
+        Set<String> changed = new HashSet<String>();
+        for(Map.Entry<String, Entry> entry : entries.entrySet())
+        {
+            if(entry.getValue().changed)
+            {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    // Names of the indexed files with the versions they were synced at
+    public synchronized Map<String, Integer> getVersions()
+    {
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        for(Map.Entry<String, Entry> entry : entries.entrySet())
+        {
+            versions.put(entry.getKey(), entry.getValue().version);
+        }
+        return versions;
+    }
+
+    public File getFile(String name)
+    {
+        return new File(directory, name.replace('/', File.separatorChar));
+    }
+
+    // A local copy of a block, or null
+    public synchronized Location find(String hash)
+    {
+        if(locations == null)
+        {
+            locations = new HashMap<String, Location>();
+            for(Map.Entry<String, Entry> entry : entries.entrySet())
+            {
+                locate(entry.getKey(), entry.getValue());
+            }
+        }
+        return locations.get(hash);
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    // Writes the index if it changed, replacing the old one atomically
+    public synchronized void save() throws IOException
+    {
+        if(!dirty)
+        {
+            return;
+        }
+        File tmp = File.createTempFile(indexFile().getName(), ".tmp", directory);
+        try
+        {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try
+            {
+                out.writeInt(INDEX_MAGIC);
+                out.writeUTF(chunker.toString());
+                out.writeInt(entries.size());
+                for(Map.Entry<String, Entry> entry : entries.entrySet())
+                {
+                    Entry e = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(e.size);
+                    out.writeLong(e.modified);
+                    out.writeLong(e.indexed);
+                    out.writeInt(e.version);
+                    out.writeBoolean(e.changed);
+                    out.writeInt(e.blocks.size());
+                    for(int i=0; i < e.blocks.size(); ++i)
+                    {
+                        byte[] hash = Base64.getDecoder().decode(e.blocks.getHash(i));
+                        out.writeByte(hash.length);
+                        out.write(hash);
+                        out.writeInt(e.blocks.getLength(i));
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(tmp.toPath(), indexFile().toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private void load(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if(in.readInt() != INDEX_MAGIC || !chunker.toString().equals(in.readUTF()))
+            {
+                dirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for(int n=0; n < count; ++n)
+            {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long indexed = in.readLong();
+                int version = in.readInt();
+                boolean changed = in.readBoolean();
+                int blockCount = in.readInt();
+                FileBlocks blocks = new FileBlocks();
+                long offset = 0;
+                for(int i=0; i < blockCount; ++i)
+                {
+                    byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    int length = in.readInt();
+                    blocks.add(Base64.getEncoder().encodeToString(hash), offset, length);
+                    offset += length;
+                }
+                entries.put(name, new Entry(size, modified, indexed, version, changed, blocks));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private File indexFile()
+    {
+        return new File(directory, tree ? TREE_INDEX_NAME : INDEX_NAME);
+    }
+
+    // Regular files of the directory, or of the whole tree, by name
+    private Map<String, BasicFileAttributes> list()
+    {
+        final Map<String, BasicFileAttributes> files = new HashMap<String, BasicFileAttributes>();
+        final Path root = directory.toPath();
+        try
+        {
+            Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), tree ? Integer.MAX_VALUE : 1,
+                    new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(root) || !isInternal(dir.getFileName().toString())
+                            ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !isInternal(file.getFileName().toString())) {
+                        files.put(root.relativize(file).toString().replace(File.separatorChar, '/'), attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warning("Could not index " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch(IOException e)
+        {
+            logger.warning("Could not list " + directory + ": " + e.getMessage());
+        }
+        return files;
+    }
+
+    private void put(String name, Entry entry)
+    {
+        Entry old = entries.put(name, entry);
+        if(old != null)
+        {
+            forget(name, old);
+        }
+        if(locations != null)
+        {
+            locate(name, entry);
+        }
+        dirty = true;
+    }
+
+    private void locate(String name, Entry entry)
+    {
+        File file = getFile(name);
+        for(int i=0; i < entry.blocks.size(); ++i)
+        {
+            locations.put(entry.blocks.getHash(i), new Location(file, entry.blocks.getOffset(i), entry.blocks.getLength(i)));
+        }
+    }
+
+    // Drops the locations of a file's blocks that point into it
+    private void forget(String name, Entry entry)
+    {
+        if(locations == null)
+        {
+            return;
+        }
+        File file = getFile(name);
+        for(int i=0; i < entry.blocks.size(); ++i)
+        {
+            Location location = locations.get(entry.blocks.getHash(i));
+            if(location != null && location.file.equals(file))
+            {
+                locations.remove(entry.blocks.getHash(i));
+            }
+        }
+    }
+}
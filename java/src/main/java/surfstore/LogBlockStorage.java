@@ -0,0 +1,734 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Append-only, log-structured block storage.
+ *
+ * Blocks are appended to segment files ("segment-00000001.log") as
+ * [magic][crc32][hash length][hash][compression][data length][data]
+ * records and read
+ * back through memory mappings: getBlock returns a ByteString wrapping the
+ * mapped region itself, so block payloads are never copied onto the heap.
+ * A BlockIndex maps each digest to its (segment, offset, length). When
+ * a segment fills up it is sealed and a hint file with its index entries
+ * is written next to it, so a restart only has to scan the segment that
+ * was active when the process stopped. Deleting a block appends a
+ * tombstone record (compression byte 0xff, no data) that removes it from
+ * the index again on recovery. compact() reclaims the space of deleted
+ * blocks by copying the live records of mostly-dead segments forward and
+ * removing the old files.
+ *
+ * With a sync interval of 0, storeBlock returns once the record is on disk;
+ * concurrent writers share a single fsync (group commit). A positive
+ * interval syncs in the background every that many milliseconds instead.
+ */
+public final class LogBlockStorage implements BlockStorage
+{
+    private static final Logger logger = Logger.getLogger(LogBlockStorage.class.getName());
+
+    // Version 1 records and hints have no compression byte
+    private static final int RECORD_MAGIC_V1 = 0x53524642;
+    private static final int RECORD_MAGIC = 0x53524643;
+    private static final int HINT_MAGIC_V1 = 0x53524648;
+    private static final int HINT_MAGIC = 0x53524649;
+    private static final int HEADER_SIZE = 10; // magic + crc + hash length
+    private static final int SEGMENT_MASK = 0xffffff;
+    private static final int TOMBSTONE = 0xff; // compression byte of a deletion record
+    private static final int RECORD_OVERHEAD = HEADER_SIZE + 44 + 5; // for a Base64 SHA-256 hash
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+
+    private final File directory;
+    private final long segmentSize;
+    private final long syncInterval;
+
+    private final BlockIndex index;
+    private final ConcurrentHashMap<Integer, Segment> segments;
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private volatile Segment active;
+    private long appendedBytes; // guarded by appendLock, counts bytes over all segments
+    private volatile long syncedBytes;
+    private Timer syncTimer;
+
+    private interface RecordVisitor
+    {
+        void visit(byte[] hashBytes, int compression, int offset, int length) throws IOException;
+    }
+
+    static final class Segment
+    {
+        final int id;
+        final File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+        volatile MappedByteBuffer map;
+        int writePosition;
+        boolean sealed;
+
+        Segment(int id, File file)
+        {
+            this.id = id;
+            this.file = file;
+        }
+
+        synchronized void force() throws IOException
+        {
+            if(!sealed)
+            {
+                channel.force(false);
+            }
+        }
+    }
+
+    public LogBlockStorage(File directory, long segmentSize, long syncInterval) throws IOException
+    {
+        if(segmentSize <= 0 || Integer.MAX_VALUE < segmentSize)
+        {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + Integer.MAX_VALUE + " bytes");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create data directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.index = new BlockIndex();
+        this.segments = new ConcurrentHashMap<Integer, Segment>();
+
+        long startTime = System.currentTimeMillis();
+        recover();
+        logger.info("Loaded " + index.size() + " blocks from " + segments.size() + " segments in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+
+        if(0 < syncInterval)
+        {
+            syncTimer = new Timer("LogBlockStorage-sync", true);
+            syncTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try
+                    {
+                        long target;
+                        synchronized(appendLock)
+                        {
+                            target = appendedBytes;
+                        }
+                        sync(target);
+                    }
+                    catch(IOException e)
+                    {
+                        logger.log(Level.WARNING, "Background sync failed", e);
+                    }
+                }
+            }, syncInterval, syncInterval);
+        }
+    }
+
+    @Override
+    public void storeBlock(String hash, ByteString data, Compression compression) throws IOException
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        if(digest == null)
+        {
+            throw new IllegalArgumentException("Block hash is not a Base64 256-bit digest: " + hash);
+        }
+        if(index.contains(digest))
+        {
+            return;
+        }
+        ByteBuffer header = encodeHeader(hash, data.size(), compression.getNumber());
+        long end;
+        synchronized(appendLock)
+        {
+            if(index.contains(digest))
+            {
+                return;
+            }
+            Segment seg = append(header, data);
+            index.put(digest, position(seg.id, seg.writePosition - data.size(), compression.getNumber()), data.size());
+            end = appendedBytes;
+        }
+        if(syncInterval == 0)
+        {
+            sync(end);
+        }
+    }
+
+    // Deletions are logged as tombstone records so recovery does not bring the block back
+    @Override
+    public void deleteBlock(String hash) throws IOException
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        if(digest == null || !index.contains(digest))
+        {
+            return;
+        }
+        ByteBuffer header = encodeHeader(hash, 0, TOMBSTONE);
+        long end;
+        synchronized(appendLock)
+        {
+            if(!index.contains(digest))
+            {
+                return;
+            }
+            append(header, ByteString.EMPTY);
+            index.remove(digest);
+            end = appendedBytes;
+        }
+        if(syncInterval == 0)
+        {
+            sync(end);
+        }
+    }
+
+    @Override
+    public void forEachBlock(final BlockVisitor visitor)
+    {
+        index.forEach(new BlockIndex.Visitor() {
+            @Override
+            public void visit(byte[] digest, long position, int length) {
+                visitor.visit(BlockIndex.encodeHash(digest));
+            }
+        });
+    }
+
+    // Appends one record to the active segment, rolling to a new segment if
+    // it does not fit, and returns the segment it went to. Callers hold appendLock.
+    private Segment append(ByteBuffer header, ByteString data) throws IOException
+    {
+        int recordSize = header.remaining() + data.size();
+        Segment seg = active;
+        if(seg.map.capacity() - seg.writePosition < recordSize)
+        {
+            seg = roll(recordSize);
+        }
+        int position = seg.writePosition;
+        writeFully(seg.channel, header, position);
+        long dataPosition = position + header.capacity();
+        for(ByteBuffer chunk : data.asReadOnlyByteBufferList())
+        {
+            dataPosition += chunk.remaining();
+            writeFully(seg.channel, chunk, dataPosition - chunk.remaining());
+        }
+        // The checksum is taken from the mapped copy of the record, which
+        // avoids copying the payload out of a read-only ByteString
+        ByteBuffer crcBuf = ByteBuffer.allocate(4);
+        crcBuf.putInt(0, checksum(seg.map, position, position + recordSize));
+        writeFully(seg.channel, crcBuf, position + 4);
+        seg.writePosition += recordSize;
+        appendedBytes += recordSize;
+        return seg;
+    }
+
+    @Override
+    public StoredBlock getBlock(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        long[] entry = new long[2];
+        if(digest == null || !index.get(digest, entry))
+        {
+            return null;
+        }
+        Segment seg = segments.get((int)(entry[0] >>> 32) & SEGMENT_MASK);
+        while(seg == null)
+        {
+            // The segment was compacted away after the lookup; the index now points at the copy
+            if(!index.get(digest, entry))
+            {
+                return null;
+            }
+            seg = segments.get((int)(entry[0] >>> 32) & SEGMENT_MASK);
+        }
+        int offset = (int)entry[0];
+        ByteBuffer buf = seg.map.asReadOnlyBuffer();
+        buf.limit(offset + (int)entry[1]);
+        buf.position(offset);
+        return new StoredBlock(UnsafeByteOperations.unsafeWrap(buf.slice()), Compression.forNumber((int)(entry[0] >>> 56)));
+    }
+
+    @Override
+    public boolean hasBlock(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        return digest != null && index.contains(digest);
+    }
+
+    // Copies the live blocks of sealed segments in which at least "minGarbage"
+    // of the bytes belong to deleted blocks to the end of the log, then
+    // removes those segments. Records are copied one at a time under
+    // appendLock, so stores and deletes never wait for more than one copy.
+    // Returns the number of segments removed.
+    public int compact(double minGarbage) throws IOException
+    {
+        final HashMap<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+        index.forEach(new BlockIndex.Visitor() {
+            @Override
+            public void visit(byte[] digest, long position, int length) {
+                int segment = (int)(position >>> 32) & SEGMENT_MASK;
+                Long live = liveBytes.get(segment);
+                liveBytes.put(segment, (live == null ? 0 : live) + length + RECORD_OVERHEAD);
+            }
+        });
+        List<Segment> victims = new ArrayList<Segment>();
+        synchronized(appendLock)
+        {
+            for(Segment seg : segments.values())
+            {
+                Long live = liveBytes.get(seg.id);
+                if(seg != active && seg.sealed && 0 < seg.writePosition
+                        && minGarbage <= 1 - (live == null ? 0 : live) / (double)seg.writePosition)
+                {
+                    victims.add(seg);
+                }
+            }
+        }
+        Collections.sort(victims, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Integer.compare(a.id, b.id);
+            }
+        });
+        for(Segment seg : victims)
+        {
+            compactSegment(seg);
+        }
+        return victims.size();
+    }
+
+    private void compactSegment(final Segment seg) throws IOException
+    {
+        // A tombstone only matters while an older segment may still hold the block
+        boolean older = false;
+        for(int id : segments.keySet())
+        {
+            older |= id < seg.id;
+        }
+        final boolean keepTombstones = older;
+        scan(seg, false, new RecordVisitor() {
+            @Override
+            public void visit(byte[] hashBytes, int compression, int offset, int length) throws IOException {
+                String hash = new String(hashBytes, StandardCharsets.UTF_8);
+                byte[] digest = BlockIndex.decodeHash(hash);
+                if (digest == null) {
+                    return;
+                }
+                if (compression == TOMBSTONE) {
+                    if (keepTombstones) {
+                        ByteBuffer header = encodeHeader(hash, 0, TOMBSTONE);
+                        synchronized (appendLock) {
+                            if (!index.contains(digest)) {
+                                append(header, ByteString.EMPTY);
+                            }
+                        }
+                    }
+                    return;
+                }
+                ByteBuffer data = seg.map.asReadOnlyBuffer();
+                data.limit(offset + length);
+                data.position(offset);
+                ByteBuffer header = encodeHeader(hash, length, compression);
+                long[] entry = new long[2];
+                synchronized (appendLock) {
+                    // Skip blocks deleted since, or whose index entry is elsewhere
+                    if (index.get(digest, entry) && entry[0] == position(seg.id, offset, compression)) {
+                        Segment to = append(header, UnsafeByteOperations.unsafeWrap(data.slice()));
+                        index.put(digest, position(to.id, to.writePosition - length, compression), length);
+                    }
+                }
+            }
+        });
+        long end;
+        synchronized(appendLock)
+        {
+            end = appendedBytes;
+        }
+        sync(end);
+        // Readers that still hold a view of the old segment keep its mapping alive
+        segments.remove(seg.id);
+        if(!seg.file.delete())
+        {
+            logger.warning("Could not delete compacted segment " + seg.file);
+        }
+        hintFile(seg.id).delete();
+        logger.info("Compacted segment " + seg.id);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(syncTimer != null)
+        {
+            syncTimer.cancel();
+        }
+        synchronized(appendLock)
+        {
+            active.force();
+            for(Segment seg : segments.values())
+            {
+                if(!seg.sealed)
+                {
+                    seg.channel.close();
+                    seg.raf.close();
+                }
+            }
+        }
+    }
+
+    // Makes every record appended before "target" durable. Callers that arrive
+    // while another thread is syncing usually find their bytes already covered.
+    private void sync(long target) throws IOException
+    {
+        synchronized(syncLock)
+        {
+            if(target <= syncedBytes)
+            {
+                return;
+            }
+            long covered;
+            Segment seg;
+            synchronized(appendLock)
+            {
+                covered = appendedBytes;
+                seg = active;
+            }
+            seg.force(); // earlier segments were forced when they were sealed
+            syncedBytes = covered;
+        }
+    }
+
+    private void recover() throws IOException
+    {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        int[] ids = new int[files.length];
+        for(int i=0; i < files.length; ++i)
+        {
+            String name = files[i].getName();
+            ids[i] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+
+        for(int i=0; i < ids.length; ++i)
+        {
+            Segment seg = new Segment(ids[i], segmentFile(ids[i]));
+            segments.put(seg.id, seg);
+            File hint = hintFile(seg.id);
+            if(hint.exists() && loadHint(seg, hint))
+            {
+                seg.map = mapReadOnly(seg.file);
+                seg.writePosition = seg.map.capacity();
+                seg.sealed = true;
+            }
+            else if(i == ids.length - 1)
+            {
+                openActive(seg);
+                seg.writePosition = scan(seg, true, null);
+                active = seg;
+            }
+            else
+            {
+                // The process stopped while sealing this segment
+                openActive(seg);
+                seg.writePosition = scan(seg, true, null);
+                seal(seg);
+            }
+            appendedBytes += seg.writePosition;
+        }
+        syncedBytes = appendedBytes;
+        if(active == null)
+        {
+            int nextId = ids.length == 0 ? 1 : ids[ids.length - 1] + 1;
+            Segment seg = new Segment(nextId, segmentFile(nextId));
+            openActive(seg);
+            segments.put(seg.id, seg);
+            active = seg;
+        }
+    }
+
+    // Seals the active segment and starts a new one big enough for "recordSize"
+    private Segment roll(int recordSize) throws IOException
+    {
+        Segment old = active;
+        seal(old);
+        Segment seg = new Segment(old.id + 1, segmentFile(old.id + 1));
+        openActive(seg, Math.max(segmentSize, recordSize));
+        segments.put(seg.id, seg);
+        active = seg;
+        return seg;
+    }
+
+    private void seal(Segment seg) throws IOException
+    {
+        synchronized(seg)
+        {
+            seg.channel.force(true);
+            seg.raf.setLength(seg.writePosition);
+            seg.map = seg.channel.map(FileChannel.MapMode.READ_ONLY, 0, seg.writePosition);
+            seg.channel.close();
+            seg.raf.close();
+            seg.sealed = true;
+        }
+        writeHint(seg);
+    }
+
+    private void openActive(Segment seg) throws IOException
+    {
+        openActive(seg, segmentSize);
+    }
+
+    // The active segment is preallocated and mapped once so reads never remap
+    private void openActive(Segment seg, long size) throws IOException
+    {
+        seg.raf = new RandomAccessFile(seg.file, "rw");
+        if(seg.raf.length() < size)
+        {
+            seg.raf.setLength(size);
+        }
+        seg.channel = seg.raf.getChannel();
+        seg.map = seg.channel.map(FileChannel.MapMode.READ_WRITE, 0, seg.raf.length());
+    }
+
+    private static MappedByteBuffer mapReadOnly(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // Walks the records of a segment and returns the end of the last valid one.
+    // A torn or zeroed tail ends the walk.
+    private int scan(Segment seg, boolean rebuild, RecordVisitor visitor) throws IOException
+    {
+        ByteBuffer buf = seg.map.duplicate();
+        int limit = Math.min(buf.capacity(), rebuild ? buf.capacity() : seg.writePosition);
+        int position = 0;
+        while(position + HEADER_SIZE <= limit)
+        {
+            int magic = buf.getInt(position);
+            if(magic != RECORD_MAGIC && magic != RECORD_MAGIC_V1)
+            {
+                break;
+            }
+            int hashLen = buf.getShort(position + 8) & 0xffff;
+            int lengthPos = position + HEADER_SIZE + hashLen + (magic == RECORD_MAGIC ? 1 : 0);
+            if(limit < lengthPos + 4)
+            {
+                break;
+            }
+            int compression = magic == RECORD_MAGIC ? buf.get(lengthPos - 1) & 0xff : Compression.NONE_VALUE;
+            int dataLen = buf.getInt(lengthPos);
+            int dataPos = lengthPos + 4;
+            if(dataLen < 0 || limit - dataPos < dataLen)
+            {
+                break;
+            }
+            if(rebuild && checksum(buf, position, dataPos + dataLen) != buf.getInt(position + 4))
+            {
+                break;
+            }
+            byte[] hashBytes = new byte[hashLen];
+            ByteBuffer hashBuf = buf.duplicate();
+            hashBuf.position(position + HEADER_SIZE);
+            hashBuf.get(hashBytes);
+            if(rebuild)
+            {
+                indexRecord(seg.id, hashBytes, dataPos, dataLen, compression);
+            }
+            if(visitor != null)
+            {
+                visitor.visit(hashBytes, compression, dataPos, dataLen);
+            }
+            position = dataPos + dataLen;
+        }
+        return position;
+    }
+
+    private void writeHint(Segment seg) throws IOException
+    {
+        File tmp = new File(directory, hintFile(seg.id).getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try
+        {
+            out.writeInt(HINT_MAGIC);
+            scan(seg, false, new RecordVisitor() {
+                @Override
+                public void visit(byte[] hashBytes, int compression, int offset, int length) throws IOException {
+                    out.writeShort(hashBytes.length);
+                    out.write(hashBytes);
+                    out.writeByte(compression);
+                    out.writeInt(offset);
+                    out.writeInt(length);
+                }
+            });
+            out.writeShort(0xffff); // end marker, never a valid hash length here
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tmp.renameTo(hintFile(seg.id)))
+        {
+            throw new IOException("Could not write hint file for segment " + seg.id);
+        }
+    }
+
+    private boolean loadHint(Segment seg, File hint)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint)));
+            try
+            {
+                int magic = in.readInt();
+                if(magic != HINT_MAGIC && magic != HINT_MAGIC_V1)
+                {
+                    return false;
+                }
+                int hashLen;
+                while((hashLen = in.readUnsignedShort()) != 0xffff)
+                {
+                    byte[] hashBytes = new byte[hashLen];
+                    in.readFully(hashBytes);
+                    int compression = magic == HINT_MAGIC ? in.readUnsignedByte() : Compression.NONE_VALUE;
+                    int offset = in.readInt();
+                    int length = in.readInt();
+                    indexRecord(seg.id, hashBytes, offset, length, compression);
+                }
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(EOFException e)
+        {
+            logger.warning("Hint file " + hint + " is truncated, scanning segment instead");
+            return false;
+        }
+        catch(IOException e)
+        {
+            logger.log(Level.WARNING, "Could not read hint file " + hint, e);
+            return false;
+        }
+    }
+
+    private void indexRecord(int segment, byte[] hashBytes, int offset, int length, int compression)
+    {
+        byte[] digest = BlockIndex.decodeHash(new String(hashBytes, StandardCharsets.UTF_8));
+        if(digest == null || (compression != TOMBSTONE && Compression.forNumber(compression) == null))
+        {
+            logger.warning("Skipping unreadable block record in segment " + segment);
+            return;
+        }
+        if(compression == TOMBSTONE)
+        {
+            index.remove(digest);
+        }
+        else
+        {
+            index.put(digest, position(segment, offset, compression), length);
+        }
+    }
+
+    // Index positions carry the compression in the top byte, the segment id
+    // in the rest of the high word and the offset in the low word
+    private static long position(int segment, int offset, int compression)
+    {
+        return ((long)compression << 56) | ((long)(segment & SEGMENT_MASK) << 32) | offset;
+    }
+
+    private static ByteBuffer encodeHeader(String hash, int dataLength, int compression)
+    {
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        if(0xffff <= hashBytes.length)
+        {
+            throw new IllegalArgumentException("Hash is too long");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + hashBytes.length + 5);
+        header.putInt(RECORD_MAGIC);
+        header.putInt(0); // crc, written once the whole record is in place
+        header.putShort((short)hashBytes.length);
+        header.put(hashBytes);
+        header.put((byte)compression);
+        header.putInt(dataLength);
+        header.flip();
+        return header;
+    }
+
+    // CRC32 of a record, covering everything after the crc field
+    private static int checksum(ByteBuffer segment, int recordStart, int recordEnd)
+    {
+        ByteBuffer covered = segment.duplicate();
+        covered.limit(recordEnd);
+        covered.position(recordStart + 8);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int)crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        while(buf.hasRemaining())
+        {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private File segmentFile(int id)
+    {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private File hintFile(int id)
+    {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, HINT_SUFFIX));
+    }
+}
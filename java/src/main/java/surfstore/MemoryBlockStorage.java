@@ -0,0 +1,166 @@
+package surfstore;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Keeps every block on the heap. Nothing survives a restart.
+ *
+ * Blocks are appended to a chunked array and found through a BlockIndex
+ * whose position is the slot number, so concurrent handlers can store and
+ * read without a global lock. Slots are handed out by an atomic counter;
+ * only growing the array takes a lock, once every CHUNK_SIZE blocks.
+ *
+ * The slots of deleted blocks, and of blocks another handler stored first,
+ * go on a free list and are handed out again before the counter moves, so
+ * the array only grows with the number of blocks held. A reader that found
+ * a slot just before its block was deleted may see the slot reused; each
+ * slot keeps its block's digest so the reader can tell.
+ */
+public final class MemoryBlockStorage implements BlockStorage
+{
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final BlockIndex index;
+    private final Object growLock = new Object();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<Integer>();
+    private volatile Slot[][] chunks;
+
+    private static final class Slot
+    {
+        final byte[] digest;
+        final StoredBlock block;
+
+        Slot(byte[] digest, StoredBlock block)
+        {
+            this.digest = digest;
+            this.block = block;
+        }
+    }
+
+    public MemoryBlockStorage()
+    {
+        this.index = new BlockIndex();
+        this.chunks = new Slot[16][];
+    }
+
+    @Override
+    public void storeBlock(String hash, ByteString data, Compression compression)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        if(digest == null)
+        {
+            throw new IllegalArgumentException("Block hash is not a Base64 256-bit digest: " + hash);
+        }
+        if(index.contains(digest))
+        {
+            return;
+        }
+        Integer free = freeSlots.poll();
+        int slot = free != null ? free : nextSlot.getAndIncrement();
+        if(slot < 0)
+        {
+            throw new IllegalStateException("Out of block slots");
+        }
+        Slot[] chunk = chunk(slot >>> CHUNK_BITS);
+        chunk[slot & (CHUNK_SIZE - 1)] = new Slot(digest, new StoredBlock(data, compression));
+        // Publishing through the index makes the slot visible to readers. A
+        // handler storing the same block at the same time may have won; the
+        // slot then goes back on the free list.
+        if(!index.putIfAbsent(digest, slot, data.size()))
+        {
+            chunk[slot & (CHUNK_SIZE - 1)] = null;
+            freeSlots.add(slot);
+        }
+    }
+
+    // The chunk with this number, allocated if needed
+    private Slot[] chunk(int number)
+    {
+        Slot[][] current = chunks;
+        if(number < current.length && current[number] != null)
+        {
+            return current[number];
+        }
+        synchronized(growLock)
+        {
+            current = chunks;
+            if(current.length <= number)
+            {
+                Slot[][] grown = new Slot[Math.max(current.length * 2, number + 1)][];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if(current[number] == null)
+            {
+                current[number] = new Slot[CHUNK_SIZE];
+            }
+            chunks = current;
+            return current[number];
+        }
+    }
+
+    @Override
+    public StoredBlock getBlock(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        long[] entry = new long[2];
+        if(digest == null || !index.get(digest, entry))
+        {
+            return null;
+        }
+        int slot = (int)entry[0];
+        Slot stored = chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+        // The block was deleted, and maybe its slot reused, since the lookup
+        if(stored == null || !Arrays.equals(stored.digest, digest))
+        {
+            return null;
+        }
+        return stored.block;
+    }
+
+    @Override
+    public boolean hasBlock(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        return digest != null && index.contains(digest);
+    }
+
+    @Override
+    public void deleteBlock(String hash)
+    {
+        byte[] digest = BlockIndex.decodeHash(hash);
+        long[] entry = new long[2];
+        if(digest == null)
+        {
+            return;
+        }
+        if(index.remove(digest, entry))
+        {
+            int slot = (int)entry[0];
+            chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)] = null;
+            freeSlots.add(slot);
+        }
+    }
+
+    @Override
+    public void forEachBlock(final BlockVisitor visitor)
+    {
+        index.forEach(new BlockIndex.Visitor() {
+            @Override
+            public void visit(byte[] digest, long position, int length) {
+                visitor.visit(BlockIndex.encodeHash(digest));
+            }
+        });
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
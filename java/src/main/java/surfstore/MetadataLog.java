@@ -0,0 +1,150 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * The changes a MetadataStore made, one entry per change in the order
+ * they were made. An entry's index is its sequence number; a follower's
+ * log holds the same entries as the leader's, so the number of entries
+ * it holds says how far it has caught up.
+ *
+ * Every entry has the name of the file it changed. The leader also keeps
+ * the record each change left behind, so it can send the entry to the
+ * followers, until they all have it or more than "maxKept" records are
+ * kept; a follower further behind has to read the files it missed again.
+ */
+public final class MetadataLog
+{
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<FileRecord> records = new ArrayList<FileRecord>(); // entries "kept" on, from "head"
+    private final int maxKept;
+    private int kept;
+    private int head;
+
+    public MetadataLog(int maxKept)
+    {
+        this.maxKept = maxKept;
+    }
+
+    // Returns the sequence number of the entry
+    public synchronized int append(String filename)
+    {
+        return append(filename, null);
+    }
+
+    // An entry whose record is null cannot be sent, nor can any before it
+    public synchronized int append(String filename, FileRecord file)
+    {
+        names.add(filename);
+        if(file == null || maxKept == 0)
+        {
+            records.clear();
+            head = 0;
+            kept = names.size();
+        }
+        else
+        {
+            records.add(file);
+            if(maxKept < records.size() - head)
+            {
+                drop(kept + 1);
+            }
+        }
+        notifyAll();
+        return names.size() - 1;
+    }
+
+    public synchronized String get(int index)
+    {
+        return names.get(index);
+    }
+
+    public synchronized int size()
+    {
+        return names.size();
+    }
+
+    public synchronized List<String> getAll()
+    {
+        return new ArrayList<String>(names);
+    }
+
+    // The names of the entries "from" to "to"
+    public synchronized List<String> getRange(int from, int to)
+    {
+        return new ArrayList<String>(names.subList(from, to));
+    }
+
+    // The entries from "from" on, as FileInfo, up to about "maxBytes" of
+    // them but at least one if there are any. Null if the records of the
+    // entries are no longer kept.
+    public synchronized List<FileInfo> read(int from, int maxBytes)
+    {
+        if(from < kept)
+        {
+            return null;
+        }
+        List<FileInfo> entries = new ArrayList<FileInfo>();
+        int bytes = 0;
+        for(int i=from; i < names.size() && (entries.isEmpty() || bytes < maxBytes); ++i)
+        {
+            FileInfo entry = records.get(head + i - kept).toFileInfo(names.get(i));
+            bytes += entry.getSerializedSize();
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    // True if the entry at "index" and those after it can be read
+    public synchronized boolean isKept(int index)
+    {
+        return kept <= index;
+    }
+
+    // Forgets the records of the entries before "index"; the followers have them
+    public synchronized void trim(int index)
+    {
+        if(kept < index)
+        {
+            drop(Math.min(index, names.size()));
+        }
+    }
+
+    // Forgets all entries, for a log that is replaced by the leader's
+    public synchronized void clear()
+    {
+        names.clear();
+        records.clear();
+        kept = 0;
+        head = 0;
+    }
+
+    // Waits until the log holds "count" entries; false if it does not after "timeout" ms
+    public synchronized boolean awaitSize(int count, long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while(names.size() < count && 0 < left)
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return count <= names.size();
+    }
+
+    private void drop(int index)
+    {
+        while(kept < index)
+        {
+            records.set(head++, null);
+            ++kept;
+        }
+        if(records.size() < 2 * head)
+        {
+            records.subList(0, head).clear();
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package surfstore;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.LogAck;
+import surfstore.SurfStoreBasic.LogEntries;
+
+/**
+ * Sends the leader's MetadataLog to the followers, all at once through
+ * async stubs.
+ *
+ * Entries go out in AppendEntries batches of up to BATCH_BYTES, with up to
+ * MAX_IN_FLIGHT batches on the wire per follower. Entries appended while a
+ * follower's window is full go out together in its next batch, so a busy
+ * leader sends fewer, larger batches instead of a round-trip per change.
+ *
+ * Each follower answers a batch with its match index, the number of
+ * entries its log holds once the batch is durable there. A batch it turns
+ * down is sent again from there. A write waits only until a majority of
+ * the servers has its entry; the other followers keep being sent the log
+ * in the background.
+ *
+ * A follower that fails a call, or is behind the records the log keeps,
+ * is down: nobody waits for it, and one batch is tried every RETRY_DELAY
+ * until it answers again and can be sent what it misses. A follower that
+ * is behind is told so in that batch and catches up by itself, as does one
+ * whose log is of another term, such as the leader's before it restarted.
+ * Followers that are up get an empty batch at least every HEARTBEAT, so
+ * the leader learns of a crash before a write has to wait for the
+ * follower.
+ */
+public final class MetadataReplicator
+{
+    private static final Logger logger = Logger.getLogger(MetadataReplicator.class.getName());
+
+    public static final int BATCH_BYTES = 1024 * 1024; // stays well below the 4 MB gRPC message limit
+    public static final int MAX_IN_FLIGHT = 4; // followers serve at least this many calls at once
+    private static final long RETRY_DELAY = 500;
+    private static final long HEARTBEAT = 500;
+    private static final long CALL_TIMEOUT = 5000;
+
+    private final MetadataLog log;
+    private final long term;
+    private final Follower[] followers;
+    private final Timer timer = new Timer("MetadataReplicator", true);
+
+    private static final class Follower
+    {
+        final String name;
+        final MetadataStoreGrpc.MetadataStoreStub stub;
+        int nextIndex; // of the next entry to send
+        int matchIndex;
+        int inFlight;
+        boolean live = true;
+        boolean retrying;
+        long lastSent;
+
+        Follower(String name, MetadataStoreGrpc.MetadataStoreStub stub)
+        {
+            this.name = name;
+            this.stub = stub;
+        }
+    }
+
+    public MetadataReplicator(MetadataLog log, long term, String[] names, MetadataStoreGrpc.MetadataStoreStub[] stubs)
+    {
+        this.log = log;
+        this.term = term;
+        followers = new Follower[stubs.length];
+        for(int i=0; i < stubs.length; ++i)
+        {
+            followers[i] = new Follower(names[i], stubs[i]);
+        }
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, HEARTBEAT, HEARTBEAT);
+    }
+
+    // Sends what the followers' windows have room for
+    public synchronized void send()
+    {
+        for(Follower follower : followers)
+        {
+            send(follower, false);
+        }
+    }
+
+    // Waits until a majority of the servers, the leader included, has the
+    // entry at "index". False if too few followers are up for that.
+    public synchronized boolean await(int index) throws InterruptedException
+    {
+        while(true)
+        {
+            int matched = 0;
+            int waiting = 0;
+            for(Follower follower : followers)
+            {
+                if(index < follower.matchIndex)
+                {
+                    ++matched;
+                }
+                else if(follower.live)
+                {
+                    ++waiting;
+                }
+            }
+            if(majority() <= matched + 1)
+            {
+                return true;
+            }
+            if(matched + waiting + 1 < majority())
+            {
+                return false;
+            }
+            wait();
+        }
+    }
+
+    // True if enough followers are up for writes to reach a majority
+    public synchronized boolean hasQuorum()
+    {
+        int live = 0;
+        for(Follower follower : followers)
+        {
+            if(follower.live)
+            {
+                ++live;
+            }
+        }
+        return majority() <= live + 1;
+    }
+
+    // The entries every follower has
+    public synchronized int getMatchIndex()
+    {
+        int matched = Integer.MAX_VALUE;
+        for(Follower follower : followers)
+        {
+            matched = Math.min(matched, follower.matchIndex);
+        }
+        return matched;
+    }
+
+    private int majority()
+    {
+        return (followers.length + 1) / 2 + 1;
+    }
+
+    // With "heartbeat", an empty batch goes out if nothing else is in flight
+    private void send(final Follower follower, boolean heartbeat)
+    {
+        while(follower.inFlight < (follower.live ? MAX_IN_FLIGHT : 1) && !follower.retrying)
+        {
+            List<FileInfo> entries = log.read(follower.nextIndex, BATCH_BYTES);
+            final boolean behind = entries == null;
+            if(behind)
+            {
+                // The follower is behind the records the leader keeps and has
+                // to read the files it missed by itself; ask now and then how
+                // far it has got
+                if(follower.live)
+                {
+                    logger.warning(follower.name + " is behind the kept log at index " + follower.nextIndex);
+                    follower.live = false;
+                    notifyAll();
+                }
+                if(0 < follower.inFlight)
+                {
+                    return;
+                }
+                entries = Collections.emptyList();
+                retryLater(follower);
+            }
+            else if(entries.isEmpty() && follower.live && !(heartbeat && follower.inFlight == 0))
+            {
+                return;
+            }
+            heartbeat = false;
+            final int first = follower.nextIndex;
+            follower.nextIndex += entries.size();
+            follower.lastSent = System.currentTimeMillis();
+            ++follower.inFlight;
+            // The batch must not be cancelled with the call that happened to send it
+            Context previous = Context.current().fork().attach();
+            try
+            {
+                follower.stub.withDeadlineAfter(CALL_TIMEOUT, TimeUnit.MILLISECONDS).appendEntries(
+                        LogEntries.newBuilder().setTerm(term).setFirstIndex(first).addAllEntries(entries)
+                                .setCatchUp(behind).build(),
+                        new StreamObserver<LogAck>() {
+                            @Override
+                            public void onNext(LogAck ack) {
+                                acked(follower, ack);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                failed(follower, Status.fromThrowable(t));
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                            }
+                        });
+            }
+            finally
+            {
+                Context.current().detach(previous);
+            }
+        }
+    }
+
+    private synchronized void acked(Follower follower, LogAck ack)
+    {
+        --follower.inFlight;
+        // A follower of the same term cannot hold more entries than the leader
+        int matchIndex = Math.min(ack.getMatchIndex(), log.size());
+        if(ack.getSuccess())
+        {
+            follower.matchIndex = Math.max(follower.matchIndex, matchIndex);
+            follower.nextIndex = Math.max(follower.nextIndex, follower.matchIndex);
+        }
+        else
+        {
+            // Resend from where the follower is; batches still in flight
+            // after it are skipped or turned down in turn
+            follower.nextIndex = matchIndex;
+        }
+        if(!follower.live && log.isKept(follower.nextIndex))
+        {
+            logger.info(follower.name + " is back at log index " + matchIndex);
+            follower.live = true;
+        }
+        notifyAll();
+        send(follower, false);
+    }
+
+    private synchronized void failed(Follower follower, Status status)
+    {
+        --follower.inFlight;
+        if(follower.live)
+        {
+            logger.warning(follower.name + " is down: " + status);
+            follower.live = false;
+            notifyAll();
+        }
+        follower.nextIndex = follower.matchIndex;
+        retryLater(follower);
+    }
+
+    private void retryLater(final Follower follower)
+    {
+        if(follower.retrying)
+        {
+            return;
+        }
+        follower.retrying = true;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (MetadataReplicator.this) {
+                    follower.retrying = false;
+                    send(follower, false);
+                }
+            }
+        }, RETRY_DELAY);
+    }
+
+    private synchronized void heartbeat()
+    {
+        long now = System.currentTimeMillis();
+        for(Follower follower : followers)
+        {
+            if(follower.live && HEARTBEAT <= now - follower.lastSent)
+            {
+                send(follower, true);
+            }
+        }
+    }
+}
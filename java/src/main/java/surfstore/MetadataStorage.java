@@ -0,0 +1,528 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import com.google.common.io.CountingInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * The files of a MetadataStore: the current FileRecord of each in memory,
+ * and on disk a write-ahead log of the changes and snapshots of them all.
+ *
+ * Every change is appended to the active log segment
+ * ("metadata-00000001.log") as a [magic][crc32][length][FileInfo] record,
+ * the blocklist as raw digests, before the map shows it. update returns
+ * once the record is on disk; concurrent writers share a single fsync
+ * (group commit). snapshot() starts a new segment, writes all records to
+ * "snapshot-<segment>.snap" and deletes the segments before it, so a
+ * restart loads the newest snapshot and replays only the segments written
+ * since. A torn record at the end of the log is dropped.
+ *
+ * If the log cannot be written, no change is made from then on: the map
+ * would get ahead of what a restart recovers.
+ *
+ * Without a directory the records are only kept in memory.
+ */
+public final class MetadataStorage
+{
+    private static final Logger logger = Logger.getLogger(MetadataStorage.class.getName());
+
+    private static final int RECORD_MAGIC = 0x5352464d;
+    private static final int SNAPSHOT_MAGIC = 0x53524653;
+    private static final int SNAPSHOT_END = 0; // never a record's magic
+    private static final int HEADER_SIZE = 12; // magic + crc + length
+    private static final String SEGMENT_PREFIX = "metadata-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final File directory;
+    private final ConcurrentHashMap<String, FileRecord> files = new ConcurrentHashMap<String, FileRecord>();
+
+    // Changes hold the read lock from their append until the map has them,
+    // so once a snapshot has started a new segment under the write lock,
+    // the map holds every change of the old ones
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object(); // taken before appendLock
+    private int segment; // the active one
+    private FileChannel channel;
+    private long position; // in the active segment
+    private long appendedBytes; // guarded by appendLock, counts bytes over all segments
+    private volatile long syncedBytes;
+    private long snapshotBytes; // appendedBytes when the last snapshot started
+    private volatile boolean failed;
+
+    // Keeps the records in memory only
+    public MetadataStorage()
+    {
+        this.directory = null;
+    }
+
+    public MetadataStorage(File directory) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create data directory " + directory);
+        }
+        this.directory = directory;
+        long startTime = System.currentTimeMillis();
+        int replayed = recover();
+        logger.info("Loaded " + files.size() + " files, " + replayed + " changes from the log, in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    public FileRecord get(String filename)
+    {
+        return files.get(filename);
+    }
+
+    public Set<Map.Entry<String, FileRecord>> entries()
+    {
+        return Collections.unmodifiableSet(files.entrySet());
+    }
+
+    // Changes one file. "change" gets the current record, null for an
+    // unknown file, and returns the next one, or the current one to leave
+    // the file as it is. It runs while no other change to the file does.
+    // Returns the record now current, once it is durable.
+    public FileRecord update(String filename, BiFunction<String, FileRecord, FileRecord> change) throws IOException
+    {
+        long[] end = new long[1];
+        FileRecord after = change(filename, change, end);
+        if(0 < end[0])
+        {
+            sync(end[0]);
+        }
+        return after;
+    }
+
+    // Makes the changes in order, as update does, and returns once all of
+    // them are durable, with a single fsync
+    public void updateAll(List<String> filenames, List<BiFunction<String, FileRecord, FileRecord>> changes)
+            throws IOException
+    {
+        long[] end = new long[1];
+        for(int i=0; i < filenames.size(); ++i)
+        {
+            change(filenames.get(i), changes.get(i), end);
+        }
+        if(0 < end[0])
+        {
+            sync(end[0]);
+        }
+    }
+
+    // Makes one change and appends it to the log; "end" is raised to the
+    // log size after it
+    private FileRecord change(String filename, final BiFunction<String, FileRecord, FileRecord> change, final long[] end)
+            throws IOException
+    {
+        if(failed)
+        {
+            throw new IOException("The metadata log could not be written earlier");
+        }
+        FileRecord after;
+        segmentLock.readLock().lock();
+        try
+        {
+            after = files.compute(filename, new BiFunction<String, FileRecord, FileRecord>() {
+                @Override
+                public FileRecord apply(String filename, FileRecord current) {
+                    FileRecord next = change.apply(filename, current);
+                    if (next != current && directory != null) {
+                        end[0] = append(filename, next);
+                    }
+                    return next;
+                }
+            });
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            segmentLock.readLock().unlock();
+        }
+        return after;
+    }
+
+    // Writes all records to a new snapshot and deletes the log segments it
+    // covers. Changes wait only while the new segment is started.
+    public synchronized void snapshot() throws IOException
+    {
+        if(directory == null)
+        {
+            return;
+        }
+        int covered;
+        segmentLock.writeLock().lock();
+        try
+        {
+            synchronized(syncLock)
+            {
+                synchronized(appendLock)
+                {
+                    if(failed || appendedBytes == snapshotBytes)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        channel.force(false);
+                        channel.close();
+                        openSegment(segment + 1, 0);
+                    }
+                    catch(IOException e)
+                    {
+                        logger.log(Level.SEVERE, "Could not start a new metadata log segment, refusing all changes from now on", e);
+                        failed = true;
+                        throw e;
+                    }
+                    syncedBytes = appendedBytes;
+                    snapshotBytes = appendedBytes;
+                    covered = segment;
+                }
+            }
+        }
+        finally
+        {
+            segmentLock.writeLock().unlock();
+        }
+
+        long startTime = System.currentTimeMillis();
+        File tmp = new File(directory, snapshotFile(covered).getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        int count = 0;
+        try
+        {
+            out.writeInt(SNAPSHOT_MAGIC);
+            for(Map.Entry<String, FileRecord> entry : files.entrySet())
+            {
+                ByteBuffer record = encode(entry.getKey(), entry.getValue());
+                out.write(record.array(), 0, record.limit());
+                ++count;
+            }
+            out.writeInt(SNAPSHOT_END);
+            out.writeInt(count);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tmp.renameTo(snapshotFile(covered)))
+        {
+            throw new IOException("Could not write snapshot " + snapshotFile(covered));
+        }
+        for(int id : list(SEGMENT_PREFIX, SEGMENT_SUFFIX))
+        {
+            if(id < covered && !segmentFile(id).delete())
+            {
+                logger.warning("Could not delete log segment " + segmentFile(id));
+            }
+        }
+        for(int id : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+        {
+            if(id < covered)
+            {
+                snapshotFile(id).delete();
+            }
+        }
+        logger.info("Wrote a snapshot of " + count + " files in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // Appends one record and returns the log size after it. Callers hold
+    // the segment read lock.
+    private long append(String filename, FileRecord file)
+    {
+        ByteBuffer record = encode(filename, file);
+        synchronized(appendLock)
+        {
+            try
+            {
+                if(failed)
+                {
+                    throw new IOException("The metadata log could not be written earlier");
+                }
+                while(record.hasRemaining())
+                {
+                    position += channel.write(record, position);
+                }
+                appendedBytes += record.limit();
+                return appendedBytes;
+            }
+            catch(IOException e)
+            {
+                if(!failed)
+                {
+                    logger.log(Level.SEVERE, "Could not write the metadata log, refusing all changes from now on", e);
+                    failed = true;
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Makes every record appended before "target" durable. Callers that arrive
+    // while another thread is syncing usually find their bytes already covered.
+    private void sync(long target) throws IOException
+    {
+        synchronized(syncLock)
+        {
+            if(target <= syncedBytes)
+            {
+                return;
+            }
+            long covered;
+            synchronized(appendLock)
+            {
+                covered = appendedBytes;
+            }
+            try
+            {
+                channel.force(false); // earlier segments were forced when the snapshot started
+            }
+            catch(IOException e)
+            {
+                if(!failed)
+                {
+                    logger.log(Level.SEVERE, "Could not sync the metadata log, refusing all changes from now on", e);
+                    failed = true;
+                }
+                throw e;
+            }
+            syncedBytes = covered;
+        }
+    }
+
+    // Loads the newest snapshot and replays the segments after it. Returns
+    // the number of records replayed.
+    private int recover() throws IOException
+    {
+        List<Integer> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        int first = 0;
+        if(!snapshots.isEmpty())
+        {
+            first = snapshots.get(snapshots.size() - 1);
+            loadSnapshot(snapshotFile(first));
+        }
+        int replayed = 0;
+        int last = Math.max(first, 1);
+        long end = 0;
+        for(int id : list(SEGMENT_PREFIX, SEGMENT_SUFFIX))
+        {
+            if(id < first)
+            {
+                // Covered by the snapshot; the last one stopped before deleting it
+                segmentFile(id).delete();
+                continue;
+            }
+            long[] counts = new long[2];
+            replay(segmentFile(id), counts);
+            replayed += counts[0];
+            last = id;
+            end = counts[1];
+            appendedBytes += end;
+        }
+        syncedBytes = appendedBytes;
+        openSegment(last, end);
+        return replayed;
+    }
+
+    private void loadSnapshot(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try
+        {
+            if(in.readInt() != SNAPSHOT_MAGIC)
+            {
+                throw new IOException("Not a metadata snapshot: " + file);
+            }
+            int count = 0;
+            int magic;
+            while((magic = in.readInt()) != SNAPSHOT_END)
+            {
+                FileInfo info = readRecord(in, magic);
+                if(info == null)
+                {
+                    throw new IOException("Metadata snapshot " + file + " is corrupt");
+                }
+                files.put(info.getFilename(), FileRecord.of(info));
+                ++count;
+            }
+            if(in.readInt() != count)
+            {
+                throw new IOException("Metadata snapshot " + file + " is incomplete");
+            }
+        }
+        catch(EOFException e)
+        {
+            throw new IOException("Metadata snapshot " + file + " is truncated");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Applies the records of one segment; "counts" gets the number of
+    // records and the end of the last whole one
+    private void replay(File file, long[] counts) throws IOException
+    {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        DataInputStream in = new DataInputStream(counter);
+        try
+        {
+            while(true)
+            {
+                FileInfo info = readRecord(in, in.readInt());
+                if(info == null)
+                {
+                    logger.warning("Dropping a torn record at " + counts[1] + " of " + file);
+                    break;
+                }
+                FileRecord next = FileRecord.of(info);
+                FileRecord current = files.get(info.getFilename());
+                // Changes to one file are logged in order; versions only go up
+                if(current == null || current.getVersion() <= next.getVersion())
+                {
+                    files.put(info.getFilename(), next);
+                }
+                counts[0]++;
+                counts[1] = counter.getCount();
+            }
+        }
+        catch(EOFException e)
+        {
+            // the end, or a record cut off by a crash
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Reads the rest of a record whose magic was read; null if it is not
+    // a whole, intact record
+    private static FileInfo readRecord(DataInputStream in, int magic) throws IOException
+    {
+        if(magic != RECORD_MAGIC)
+        {
+            return null;
+        }
+        int crc = in.readInt();
+        int length = in.readInt();
+        if(length < 0)
+        {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        CRC32 checksum = new CRC32();
+        checksum.update(ByteBuffer.allocate(4).putInt(0, length));
+        checksum.update(data);
+        if((int)checksum.getValue() != crc)
+        {
+            return null;
+        }
+        try
+        {
+            return FileInfo.parseFrom(data);
+        }
+        catch(InvalidProtocolBufferException e)
+        {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encode(String filename, FileRecord file)
+    {
+        byte[] data = file.toFileInfo(filename).toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(0); // crc, of the length and the data
+        record.putInt(data.length);
+        record.put(data);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 8, HEADER_SIZE - 8 + data.length);
+        record.putInt(4, (int)checksum.getValue());
+        record.flip();
+        return record;
+    }
+
+    // Opens segment "id" for appending from "end" on, dropping anything after it
+    private void openSegment(int id, long end) throws IOException
+    {
+        channel = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if(end < channel.size())
+        {
+            channel.truncate(end);
+        }
+        segment = id;
+        position = end;
+    }
+
+    // The ids of the files with this prefix and suffix, in order
+    private List<Integer> list(final String prefix, final String suffix)
+    {
+        File[] found = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        });
+        List<Integer> ids = new ArrayList<Integer>();
+        for(File file : found)
+        {
+            String name = file.getName();
+            try
+            {
+                ids.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+            }
+            catch(NumberFormatException e)
+            {
+                logger.warning("Ignoring " + file);
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(int id)
+    {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private File snapshotFile(int id)
+    {
+        return new File(directory, String.format("%s%08d%s", SNAPSHOT_PREFIX, id, SNAPSHOT_SUFFIX));
+    }
+}
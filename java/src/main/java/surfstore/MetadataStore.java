@@ -2,16 +2,26 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.HashMap;
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -19,17 +29,22 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import surfstore.SurfStoreBasic.Empty;
 import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileInfoList;
+import surfstore.SurfStoreBasic.FileRange;
+import surfstore.SurfStoreBasic.BlockRange;
 import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.WriteResult;
 import surfstore.SurfStoreBasic.SimpleAnswer;
 import surfstore.SurfStoreBasic.NodeList;
 import surfstore.SurfStoreBasic.Index;
+import surfstore.SurfStoreBasic.LogAck;
+import surfstore.SurfStoreBasic.LogEntries;
+import surfstore.SurfStoreBasic.LogRange;
 
 public final class MetadataStore 
 {
     private static final Logger logger = Logger.getLogger(MetadataStore.class.getName());
-    public static ManagedChannel blockChannel;
-    public static BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    public static BlockCluster blockCluster;
     public static ManagedChannel metadataChannel;
     public static MetadataStoreGrpc.MetadataStoreBlockingStub leaderStub;
     public static ManagedChannel metadataChannel_1;
@@ -40,19 +55,26 @@ public final class MetadataStore
 
     protected Server server;
 	protected ConfigReader config;
-    public static boolean m_leader;
-    public static boolean m_crash;
-    public MetadataStore(ConfigReader config) 
+    protected BlockReferences blockReferences;
+    protected MetadataStorage storage;
+    public static volatile boolean m_leader;
+    public static volatile boolean m_crash;
+    public MetadataStore(ConfigReader config, MetadataStorage storage) 
     {
         m_crash = false;
     	this.config = config;
+        this.storage = storage;
         //blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort()).usePlaintext(true).build();
         //blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
         if(m_leader)
         {
             multiServer = false;
-            blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort()).usePlaintext(true).build();
-            blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+            blockCluster = new BlockCluster(config);
+            blockReferences = new BlockReferences();
+            for(Map.Entry<String, FileRecord> entry : storage.entries()) // recovered from the data directory
+            {
+                blockReferences.update(Collections.<String>emptyList(), entry.getValue().getBlocks());
+            }
             if(1 < config.getNumMetadataServers())
             {
                 multiServer = true;
@@ -73,7 +95,7 @@ public final class MetadataStore
 	private void start(int port, int numThreads) throws IOException 
     {
         server = ServerBuilder.forPort(port)
-                .addService(new MetadataStoreImpl())
+                .addService(new MetadataStoreImpl(blockReferences, storage))
                 .executor(Executors.newFixedThreadPool(numThreads))
                 .build()
                 .start();
@@ -114,6 +136,16 @@ public final class MetadataStore
                 .help("Set which number this server is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
                 .help("Maximum number of concurrent threads");
+        parser.addArgument("-d", "--data_dir").type(String.class)
+                .help("Directory for the metadata log and snapshots (files are kept in memory only if not set)");
+        parser.addArgument("--snapshot_interval").type(Integer.class).setDefault(600)
+                .help("Seconds between snapshots of the metadata, after which older log segments are deleted (0 disables them)");
+        parser.addArgument("--gc_grace").type(Integer.class).setDefault(3600)
+                .help("Seconds a block must stay unreferenced before it is deleted");
+        parser.addArgument("--gc_rate").type(Integer.class).setDefault(1000)
+                .help("Maximum number of unreferenced blocks deleted per second (0 disables collection)");
+        parser.addArgument("--gc_sweep_interval").type(Integer.class).setDefault(86400)
+                .help("Seconds between sweeps of the block servers for blocks no file ever used (0 disables them)");
 
         Namespace res = null;
         try 
@@ -154,34 +186,95 @@ public final class MetadataStore
             m_leader = false;
         }
 
-        final MetadataStore server = new MetadataStore(config);
+        MetadataStorage storage = new MetadataStorage();
+        if(c_args.getString("data_dir") != null)
+        {
+            final MetadataStorage log = new MetadataStorage(new File(c_args.getString("data_dir")));
+            storage = log;
+            long snapshotInterval = c_args.getInt("snapshot_interval") * 1000L;
+            if(0 < snapshotInterval)
+            {
+                new Timer("MetadataStorage-snapshot", true).schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            log.snapshot();
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Metadata snapshot failed", e);
+                        }
+                    }
+                }, snapshotInterval, snapshotInterval);
+            }
+        }
+
+        final MetadataStore server = new MetadataStore(config, storage);
         if(m_leader == true && multiServer == true)
         {
             Timer t = new Timer();
             t.schedule(new TimerTask(){
                 @Override
                 public void run() {
-                    followerStub_1.restore(Empty.newBuilder().build());
-                    followerStub_2.restore(Empty.newBuilder().build());
+                    // A follower that is down must not end the restores of the other
+                    MetadataStoreGrpc.MetadataStoreBlockingStub[] followers = {followerStub_1, followerStub_2};
+                    for (MetadataStoreGrpc.MetadataStoreBlockingStub follower : followers) {
+                        try {
+                            follower.restore(Empty.newBuilder().build());
+                        } catch (StatusRuntimeException e) {
+                            logger.fine("Restore failed: " + e.getStatus());
+                        }
+                    }
                 }
             }, 0, 5000);
         }
+        if(m_leader && 0 < c_args.getInt("gc_rate"))
+        {
+            new BlockCollector(server.blockReferences, blockCluster, c_args.getInt("gc_grace") * 1000L,
+                    c_args.getInt("gc_rate"), c_args.getInt("gc_sweep_interval") * 1000L).start();
+        }
         server.start(config.getMetadataPort(c_args.getInt("number")), c_args.getInt("threads"));
         server.blockUntilShutdown();
     }
 
     static class MetadataStoreImpl extends MetadataStoreGrpc.MetadataStoreImplBase 
     {
-        protected HashMap<String, Vector<String>> fileStorage;
-        protected HashMap<String, Integer> versionStorage;
-        protected Vector<String> logVector;
-
-        public MetadataStoreImpl()
+        private static final int LIST_PAGE_SIZE = 4096; // files per ListFiles message
+        private static final int MAX_KEPT = 1 << 18; // records the leader keeps for followers that are behind
+        private static final long REORDER_WAIT = 1000; // ms a follower waits for an earlier batch
+        private static final int CATCH_UP_NAMES = 16384; // log entries read at a time for a CatchUp chunk
+        // Writes to one file take turns; writes to different files do not wait for each other
+        protected final MetadataStorage files;
+        protected final MetadataLog log;
+        protected final MetadataReplicator replicator; // null without followers
+        protected BlockReferences blockReferences;
+        private final Object replicaLock = new Object(); // followers take in one batch at a time
+        // Of the log: the leader's start time, or on a follower that of the
+        // leader whose log it holds, 0 until it has caught up with one
+        private volatile long term;
+        private boolean catchingUp; // in the background, guarded by replicaLock
+
+        public MetadataStoreImpl(BlockReferences blockReferences, MetadataStorage files)
         {
             super();
-            fileStorage = new HashMap<String, Vector<String>>();
-            versionStorage = new HashMap<String, Integer>();
-            logVector = new Vector<String>();
+            this.blockReferences = blockReferences;
+            this.files = files;
+            log = new MetadataLog(m_leader ? MAX_KEPT : 0);
+            term = m_leader ? System.currentTimeMillis() : 0;
+            if(m_leader && multiServer)
+            {
+                replicator = new MetadataReplicator(log, term, new String[] {"follower1", "follower2"},
+                        new MetadataStoreGrpc.MetadataStoreStub[] {
+                            MetadataStoreGrpc.newStub(metadataChannel_1), MetadataStoreGrpc.newStub(metadataChannel_2)});
+            }
+            else
+            {
+                replicator = null;
+            }
+            // What was recovered counts as one change per file; a restarted
+            // leader's log is not the one its followers hold, hence a new term
+            for(Map.Entry<String, FileRecord> entry : files.entries())
+            {
+                log.append(entry.getKey());
+            }
         }
 
         @Override
@@ -196,132 +289,228 @@ public final class MetadataStore
         //@Override
         public void readFile(FileInfo req, final StreamObserver<FileInfo> responseObserver) //don't need to care about version
         {
-            FileInfo.Builder response = FileInfo.newBuilder();
+            FileInfo.Builder response = FileInfo.newBuilder().setFilename(req.getFilename());
             if(!m_leader)
             {
-                if(versionStorage.containsKey(req.getFilename()))
+                FileRecord file = files.get(req.getFilename());
+                responseObserver.onNext(response.setVersion(file == null ? 0 : file.getVersion()).build());
+                responseObserver.onCompleted();
+                return;
+            }
+            if(!hasQuorum())
+            {
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+                return;
+            }
+            // A file read before it is written is known from then on, at version 0
+            FileRecord file;
+            try
+            {
+                file = commit(req.getFilename(), new BiFunction<String, FileRecord, FileRecord>() {
+                    @Override
+                    public FileRecord apply(String filename, FileRecord current) {
+                        return current == null ? FileRecord.NONE : current;
+                    }
+                });
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            response.setVersion(file.getVersion());
+            file.addBlocklist(response, 0, file.getBlockCount(), req.getAcceptDigests());
+            response.addAllBlockSizes(file.getSizes());
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        public void listFiles(Empty req, final StreamObserver<FileInfoList> responseObserver)
+        {
+            if(!m_leader)
+            {
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Not the leader").asRuntimeException());
+                return;
+            }
+            FileInfoList.Builder page = FileInfoList.newBuilder();
+            for(Map.Entry<String, FileRecord> entry : files.entries())
+            {
+                FileRecord file = entry.getValue();
+                if(file.getVersion() == 0) // only ever read, never written
                 {
-                    FileInfo res = response.setFilename(req.getFilename()).setVersion(versionStorage.get(req.getFilename())).build();
-                    responseObserver.onNext(res);
-                    responseObserver.onCompleted();
+                    continue;
                 }
-                else
+                FileInfo.Builder info = FileInfo.newBuilder().setFilename(entry.getKey()).setVersion(file.getVersion());
+                if(file.isDeleted())
                 {
-                    FileInfo res = response.setFilename(req.getFilename()).setVersion(0).build();
-                    responseObserver.onNext(res);
-                    responseObserver.onCompleted();
+                    info.addBlocklist("0");
                 }
-            }
-            if(multiServer) // 2 Phase commit
-            {
-                SimpleAnswer follower1 = followerStub_1.isCrashed(Empty.newBuilder().build());
-                SimpleAnswer follower2 = followerStub_2.isCrashed(Empty.newBuilder().build());
-                if(follower1.getAnswer() == true && follower2.getAnswer() == true)
+                page.addFiles(info);
+                if(page.getFilesCount() == LIST_PAGE_SIZE)
                 {
-                    FileInfo res = response.setFilename(req.getFilename()).build(); 
-                    responseObserver.onNext(res);
-                    responseObserver.onCompleted();
+                    responseObserver.onNext(page.build());
+                    page = FileInfoList.newBuilder();
                 }
             }
-            this.logVector.add(req.getFilename());
-            if(fileStorage.containsKey(req.getFilename())) // if a file exists
+            if(0 < page.getFilesCount())
             {
-                response.setVersion(versionStorage.get(req.getFilename()));
-                response.setFilename((req.getFilename()));
-                if(0 < fileStorage.get(req.getFilename()).size())
+                responseObserver.onNext(page.build());
+            }
+            responseObserver.onCompleted();
+        }
+
+        public void readFiles(FileInfoList req, final StreamObserver<FileInfo> responseObserver)
+        {
+            if(!m_leader)
+            {
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Not the leader").asRuntimeException());
+                return;
+            }
+            for(FileInfo request : req.getFilesList())
+            {
+                FileInfo.Builder response = FileInfo.newBuilder().setFilename(request.getFilename());
+                FileRecord file = files.get(request.getFilename());
+                if(file != null)
                 {
-                    for(int i=0; i < fileStorage.get(req.getFilename()).size(); ++i)
-                    {
-                        response.addBlocklist(fileStorage.get(req.getFilename()).get(i));
-                    }
+                    response.setVersion(file.getVersion());
+                    file.addBlocklist(response, 0, file.getBlockCount(), request.getAcceptDigests());
+                    response.addAllBlockSizes(file.getSizes());
                 }
+                responseObserver.onNext(response.build());
             }
-            else
+            responseObserver.onCompleted();
+        }
+
+        public void readFileIfModified(FileInfo req, final StreamObserver<FileInfo> responseObserver)
+        {
+            if(!m_leader)
             {
-                fileStorage.put(req.getFilename(), new Vector<String>());
-                fileStorage.get(req.getFilename()).add("0");
-                versionStorage.put(req.getFilename(), 0);
-                response.setFilename((req.getFilename()));
-                response.setVersion(0);
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Not the leader").asRuntimeException());
+                return;
             }
-            if(multiServer)
+            FileInfo.Builder response = FileInfo.newBuilder().setFilename(req.getFilename());
+            FileRecord file = files.get(req.getFilename());
+            if(file != null)
             {
-                FileInfo followInfo = FileInfo.newBuilder().addAllBlocklist(fileStorage.get(req.getFilename())).setVersion(versionStorage.get(req.getFilename())).setFilename(req.getFilename()).build();
-                followerStub_1.append(followInfo);
-                followerStub_2.append(followInfo);
+                response.setVersion(file.getVersion());
+                if(0 < file.getVersion() && file.getVersion() == req.getVersion())
+                {
+                    response.setNotModified(true);
+                }
+                else
+                {
+                    file.addBlocklist(response, 0, file.getBlockCount(), req.getAcceptDigests());
+                    response.addAllBlockSizes(file.getSizes());
+                }
             }
-            FileInfo res = response.build();
-            responseObserver.onNext(res);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
-        //@Override
-        public void deleteFile(FileInfo req, final StreamObserver<WriteResult> responseObserver) 
+        public void readFileRange(FileRange req, final StreamObserver<BlockRange> responseObserver)
         {
-            WriteResult.Builder response = WriteResult.newBuilder();
             if(!m_leader)
             {
-                WriteResult res = response.setResult(WriteResult.Result.NOT_LEADER).build();
-                responseObserver.onNext(res);
-                responseObserver.onCompleted();
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Not the leader").asRuntimeException());
+                return;
             }
-            if(multiServer)
+            FileInfo.Builder response = FileInfo.newBuilder().setFilename(req.getFilename());
+            BlockRange.Builder range = BlockRange.newBuilder();
+            FileRecord file = files.get(req.getFilename());
+            if(file == null || file.isDeleted())
             {
-                SimpleAnswer follower1 = followerStub_1.isCrashed(Empty.newBuilder().build());
-                SimpleAnswer follower2 = followerStub_2.isCrashed(Empty.newBuilder().build());
-                if(follower1.getAnswer() == true && follower2.getAnswer() == true)
+                if(file != null)
                 {
-                    WriteResult res = response.setResult(WriteResult.Result.NOT_LEADER).build(); // Both follwers crashed not appropirate error message
-                    responseObserver.onNext(res);
-                    responseObserver.onCompleted();
+                    response.setVersion(file.getVersion()).addAllBlocklist(file.getBlocks());
                 }
+                responseObserver.onNext(range.setFile(response).build());
+                responseObserver.onCompleted();
+                return;
             }
-            this.logVector.add(req.getFilename());
-            if(fileStorage.containsKey(req.getFilename()))
+            List<Integer> sizes = file.getSizes();
+            if(sizes.isEmpty())
             {
-                if(0 < fileStorage.get(req.getFilename()).size() && fileStorage.get(req.getFilename()).get(0) != "0")
-                {
-                    if(req.getVersion() <= versionStorage.get(req.getFilename()))
-                    {
-                        response.setResult(WriteResult.Result.OLD_VERSION);
-                        response.setCurrentVersion(versionStorage.get(req.getFilename()));
-                    }
-                    else
-                    {
-                        versionStorage.put(req.getFilename(), req.getVersion());
-                        fileStorage.put(req.getFilename(), new Vector<String>());
-                        fileStorage.get(req.getFilename()).add("0");
+                responseObserver.onError(Status.FAILED_PRECONDITION
+                        .withDescription(req.getFilename() + " was written without block sizes").asRuntimeException());
+                return;
+            }
+            long offset = Math.max(0, req.getOffset());
+            long end = req.getLength() <= 0 || Long.MAX_VALUE - offset < req.getLength() ? Long.MAX_VALUE : offset + req.getLength();
+            int first = 0;
+            long start = 0;
+            while(first < sizes.size() && start + sizes.get(first) <= offset)
+            {
+                start += sizes.get(first++);
+            }
+            int last = first;
+            long size = start;
+            while(last < sizes.size() && size < end)
+            {
+                size += sizes.get(last++);
+            }
+            for(int i=last; i < sizes.size(); ++i)
+            {
+                size += sizes.get(i);
+            }
+            response.setVersion(file.getVersion());
+            file.addBlocklist(response, first, last, req.getAcceptDigests());
+            response.addAllBlockSizes(sizes.subList(first, last));
+            responseObserver.onNext(range.setFile(response).setOffset(start).setSize(size).build());
+            responseObserver.onCompleted();
+        }
+
+        //@Override
+        public void deleteFile(final FileInfo req, final StreamObserver<WriteResult> responseObserver) 
+        {
+            final WriteResult.Builder response = WriteResult.newBuilder();
+            if(!m_leader || !hasQuorum()) // Both followers crashed is not quite NOT_LEADER
+            {
+                responseObserver.onNext(response.setResult(WriteResult.Result.NOT_LEADER).build());
+                responseObserver.onCompleted();
+                return;
+            }
+            try
+            {
+                commit(req.getFilename(), new BiFunction<String, FileRecord, FileRecord>() {
+                    @Override
+                    public FileRecord apply(String filename, FileRecord current) {
+                        if (current == null) {
+                            response.setResult(WriteResult.Result.MISSING_BLOCKS); // When a file does not exist
+                            return current;
+                        }
+                        if (current.isDeleted()) {
+                            response.setResult(WriteResult.Result.MISSING_BLOCKS); //actually not found
+                            response.setCurrentVersion(current.getVersion());
+                            return current;
+                        }
+                        if (req.getVersion() <= current.getVersion()) {
+                            response.setResult(WriteResult.Result.OLD_VERSION);
+                            response.setCurrentVersion(current.getVersion());
+                            return current;
+                        }
+                        blockReferences.update(current.getBlocks(), Collections.<String>emptyList());
                         response.setResult(WriteResult.Result.OK);
                         response.setCurrentVersion(req.getVersion());
+                        return FileRecord.deleted(req.getVersion());
                     }
-                }
-                else
-                {
-                    response.setCurrentVersion(versionStorage.get(req.getFilename()));
-                    response.setResult(WriteResult.Result.MISSING_BLOCKS); //actually not found
-                }
+                });
             }
-            else
-            {
-                response.setResult(WriteResult.Result.MISSING_BLOCKS); // When a file does not exist    
-            }
-            if(multiServer)
+            catch(IOException e)
             {
-                FileInfo followInfo = FileInfo.newBuilder().addAllBlocklist(fileStorage.get(req.getFilename())).setVersion(versionStorage.get(req.getFilename())).setFilename(req.getFilename()).build();
-                followerStub_1.append(followInfo);
-                followerStub_2.append(followInfo);
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+                return;
             }
-            WriteResult res = response.build();
-            responseObserver.onNext(res);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
         public void printLog(Empty req, final StreamObserver<Empty> responseObserver)
         {
             Empty res = Empty.newBuilder().build();
-            for(int i=0; i < logVector.size(); ++i)
+            for(String filename : log.getAll())
             {
-                System.out.println(logVector.get(i));
+                System.out.println(filename);
             }
             responseObserver.onNext(res);
             responseObserver.onCompleted();
@@ -329,7 +518,8 @@ public final class MetadataStore
 
         public void getVersion(FileInfo req, final StreamObserver<FileInfo> responseObserver)
         {
-            responseObserver.onNext(FileInfo.newBuilder().setVersion(versionStorage.get(req.getFilename())).setFilename(req.getFilename()).build());
+            FileRecord file = files.get(req.getFilename());
+            responseObserver.onNext(FileInfo.newBuilder().setVersion(file == null ? 0 : file.getVersion()).setFilename(req.getFilename()).build());
             responseObserver.onCompleted();
         }
 
@@ -357,156 +547,443 @@ public final class MetadataStore
 
 
         //@Override
-        public void modifyFile(FileInfo req, final StreamObserver<WriteResult> responseObserver) 
+        public void modifyFile(final FileInfo req, final StreamObserver<WriteResult> responseObserver) 
         {
-            WriteResult.Builder response = WriteResult.newBuilder();
-            Boolean error = false;
-            if(!m_leader)
+            final WriteResult.Builder response = WriteResult.newBuilder();
+            if(!m_leader || !hasQuorum()) // Both followers crashed is not quite NOT_LEADER
             {
-                WriteResult res = response.setResult(WriteResult.Result.NOT_LEADER).build();
-                responseObserver.onNext(res);
+                responseObserver.onNext(response.setResult(WriteResult.Result.NOT_LEADER).build());
                 responseObserver.onCompleted();
+                return;
             }
-            if(multiServer)
+            // Checked again below; a stale write should not cost a round to the block servers
+            FileRecord file = files.get(req.getFilename());
+            int version = file == null ? 0 : file.getVersion();
+            if(req.getVersion() <= version)
             {
-                SimpleAnswer follower1 = followerStub_1.isCrashed(Empty.newBuilder().build());
-                SimpleAnswer follower2 = followerStub_2.isCrashed(Empty.newBuilder().build());
-                if(follower1.getAnswer() == true && follower2.getAnswer() == true)
+                responseObserver.onNext(response.setResult(WriteResult.Result.OLD_VERSION).setCurrentVersion(version).build());
+                responseObserver.onCompleted();
+                return;
+            }
+            // The collector must not delete a block between the answer of its
+            // block server and the write
+            List<String> blocks = req.getBlocklistList();
+            List<String> collecting = blockReferences.pin(blocks);
+            try
+            {
+                if(collecting.isEmpty())
+                {
+                    boolean[] answers = blockCluster.hasBlocks(blocks);
+                    for(int i=0; i < blocks.size(); ++i)
+                    {
+                        if(!answers[i])
+                        {
+                            response.addMissingBlocks(blocks.get(i));
+                        }
+                    }
+                }
+                else
                 {
-                    WriteResult res = response.setResult(WriteResult.Result.NOT_LEADER).build(); // Both follwers crashed not appropirate error message
-                    responseObserver.onNext(res);
+                    response.addAllMissingBlocks(collecting);
+                }
+                if(0 < response.getMissingBlocksCount())
+                {
+                    responseObserver.onNext(response.setResult(WriteResult.Result.MISSING_BLOCKS).setCurrentVersion(version).build());
                     responseObserver.onCompleted();
+                    return;
                 }
+                final FileRecord next = FileRecord.of(req);
+                commit(req.getFilename(), new BiFunction<String, FileRecord, FileRecord>() {
+                    @Override
+                    public FileRecord apply(String filename, FileRecord current) {
+                        int version = current == null ? 0 : current.getVersion();
+                        if (next.getVersion() <= version) {
+                            // Another write to the file got in since the check above
+                            response.setResult(WriteResult.Result.OLD_VERSION);
+                            response.setCurrentVersion(version);
+                            return current;
+                        }
+                        // Blocks the collector is deleting right now have to be uploaded again
+                        List<String> collecting = blockReferences.update(
+                                current == null ? Collections.<String>emptyList() : current.getBlocks(), next.getBlocks());
+                        if (!collecting.isEmpty()) {
+                            response.setResult(WriteResult.Result.MISSING_BLOCKS);
+                            response.addAllMissingBlocks(collecting);
+                            response.setCurrentVersion(version);
+                            return current;
+                        }
+                        response.setResult(WriteResult.Result.OK);
+                        response.setCurrentVersion(next.getVersion());
+                        return next;
+                    }
+                });
             }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            finally
+            {
+                blockReferences.unpin(blocks);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
 
-            if(!versionStorage.containsKey(req.getFilename())) 
+        public void appendEntries(LogEntries req, final StreamObserver<LogAck> responseObserver) // on a follower side
+        {
+            if(m_leader || m_crash)
             {
-                fileStorage.put(req.getFilename(), new Vector<String>());
-                fileStorage.get(req.getFilename()).add("0");
-                versionStorage.put(req.getFilename(), 0);
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(m_leader ? "Not a follower" : "Crashed").asRuntimeException());
+                return;
             }
+            LogAck.Builder response = LogAck.newBuilder();
+            try
+            {
+                // Batches that are sent together may be handled out of order
+                if(req.getTerm() == term && !req.getCatchUp())
+                {
+                    log.awaitSize(req.getFirstIndex(), REORDER_WAIT);
+                }
+                synchronized(replicaLock)
+                {
+                    if(req.getTerm() != term && req.getFirstIndex() == 0 && !req.getCatchUp()
+                            && log.size() == 0 && files.entries().isEmpty())
+                    {
+                        term = req.getTerm(); // nothing to replace; the log is taken as it comes
+                    }
+                    if(req.getTerm() != term || (req.getCatchUp() && log.size() <= req.getFirstIndex()))
+                    {
+                        // The leader cannot send what the log misses, or it is another log
+                        catchUpLater();
+                        responseObserver.onError(Status.UNAVAILABLE.withDescription("Catching up").asRuntimeException());
+                        return;
+                    }
+                    int skip = log.size() - req.getFirstIndex(); // entries the log has already
+                    if(0 <= skip)
+                    {
+                        List<String> filenames = new ArrayList<String>();
+                        List<BiFunction<String, FileRecord, FileRecord>> changes = new ArrayList<BiFunction<String, FileRecord, FileRecord>>();
+                        for(int i=skip; i < req.getEntriesCount(); ++i)
+                        {
+                            filenames.add(req.getEntries(i).getFilename());
+                            changes.add(newer(FileRecord.of(req.getEntries(i))));
+                        }
+                        files.updateAll(filenames, changes);
+                        for(String filename : filenames)
+                        {
+                            log.append(filename);
+                        }
+                    }
+                    response.setSuccess(0 <= skip).setMatchIndex(log.size());
+                }
+            }
+            catch(IOException e)
+            {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                responseObserver.onError(Status.CANCELLED.asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
 
-            this.logVector.add(req.getFilename());
+        public void restore(Empty req, final StreamObserver<Empty> responseObserver) // on a follower side
+        {
+            Empty response = Empty.newBuilder().build();
+            if(m_crash == false)
+            {
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+                return;
+            }
+            synchronized(replicaLock)
+            {
+                try
+                {
+                    catchUpWithLeader();
+                }
+                catch(StatusRuntimeException e)
+                {
+                    // What was caught up is kept; the next restore goes on from there
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Could not catch up: " + e.getStatus()).asRuntimeException());
+                    return;
+                }
+                catch(IOException e)
+                {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+                    return;
+                }
+                // Changes made since are sent again by the leader
+                m_crash = false;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
 
-            if(req.getVersion() <= versionStorage.get(req.getFilename())) // NullPointerException
+        // Starts catching up in a thread of its own unless one already is;
+        // callers hold replicaLock
+        private void catchUpLater()
+        {
+            if(catchingUp)
             {
-                response.setResult(WriteResult.Result.OLD_VERSION);
-                response.setCurrentVersion(versionStorage.get(req.getFilename()));
-                error = true;
+                return;
             }
-            else
-            {   
-                Boolean isMissing = false; 
-                for(int i=0; i < req.getBlocklistCount(); ++i)
+            catchingUp = true;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (replicaLock) {
+                        try {
+                            catchUpWithLeader();
+                        } catch (StatusRuntimeException e) {
+                            logger.warning("Could not catch up: " + e.getStatus());
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Could not catch up", e);
+                        } finally {
+                            catchingUp = false;
+                        }
+                    }
+                }
+            }, "MetadataStore-catchUp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Brings the log up to the leader's, from where it ends. A log of
+        // another term is replaced by all of the leader's, and files the
+        // leader does not know are forgotten, back at version 0. Callers
+        // hold replicaLock.
+        private void catchUpWithLeader() throws IOException
+        {
+            long startTime = System.currentTimeMillis();
+            int from = log.size();
+            int updated = 0;
+            boolean first = true;
+            boolean replace = false;
+            long leaderTerm = term;
+            HashSet<String> received = new HashSet<String>();
+            Iterator<LogRange> chunks = leaderStub.catchUp(Index.newBuilder().setIndex(from).setTerm(term).build());
+            while(chunks.hasNext())
+            {
+                LogRange chunk = chunks.next();
+                if(first)
                 {
-                    Block j_block = Block.newBuilder().setHash(req.getBlocklist(i)).build();
-                    SimpleAnswer s_answer = blockStub.hasBlock(j_block);
-                    if(!s_answer.getAnswer())
+                    first = false;
+                    leaderTerm = chunk.getTerm();
+                    replace = leaderTerm != term || chunk.getFirstIndex() != from;
+                    if(replace)
                     {
-                        response.addMissingBlocks(req.getBlocklist(i));
-                        isMissing = true;
+                        log.clear();
+                        from = 0;
                     }
                 }
-                if(isMissing)
+                List<String> filenames = new ArrayList<String>();
+                List<BiFunction<String, FileRecord, FileRecord>> changes = new ArrayList<BiFunction<String, FileRecord, FileRecord>>();
+                for(FileInfo file : chunk.getFilesList())
+                {
+                    filenames.add(file.getFilename());
+                    changes.add(replace ? replaced(FileRecord.of(file)) : newer(FileRecord.of(file)));
+                    received.add(file.getFilename());
+                }
+                // The files first, so the log never holds entries whose changes are missing
+                files.updateAll(filenames, changes);
+                for(String filename : chunk.getFilenamesList())
                 {
-                    response.setResult(WriteResult.Result.MISSING_BLOCKS);
-                    response.setCurrentVersion(versionStorage.get(req.getFilename()));
-                    error = true;
+                    log.append(filename);
                 }
+                updated += filenames.size();
             }
-            if(!error) // It means there is no error
+            if(replace)
             {
-                fileStorage.put(req.getFilename(), new Vector<String>());
-                for(int i=0;  i < req.getBlocklistCount(); ++i)
+                List<String> filenames = new ArrayList<String>();
+                List<BiFunction<String, FileRecord, FileRecord>> changes = new ArrayList<BiFunction<String, FileRecord, FileRecord>>();
+                for(Map.Entry<String, FileRecord> entry : files.entries())
                 {
-                    fileStorage.get(req.getFilename()).add(req.getBlocklist(i));
+                    if(!received.contains(entry.getKey()) && entry.getValue().getVersion() != 0)
+                    {
+                        filenames.add(entry.getKey());
+                        changes.add(replaced(FileRecord.NONE));
+                    }
                 }
-                versionStorage.put(req.getFilename(), req.getVersion());
-                response.setResult(WriteResult.Result.OK);
-                response.setCurrentVersion(req.getVersion());
+                files.updateAll(filenames, changes);
+                updated += filenames.size();
             }
-            if(multiServer)
+            term = leaderTerm;
+            logger.info((replace ? "Replaced the log with the leader's, " : "Caught up ") + (log.size() - from)
+                    + " log entries, " + updated + " files, in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        // Streams the log as CatchUp describes, a chunk of about BATCH_BYTES
+        // at a time, and resumes from the onReady callback once the
+        // follower has drained its window
+        public void catchUp(final Index req, StreamObserver<LogRange> responseObserver) // on a leader side
+        {
+            if(!m_leader)
             {
-                FileInfo followInfo = FileInfo.newBuilder().addAllBlocklist(fileStorage.get(req.getFilename())).setVersion(versionStorage.get(req.getFilename())).setFilename(req.getFilename()).build();
-                followerStub_1.append(followInfo);
-                followerStub_2.append(followInfo);
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Not the leader").asRuntimeException());
+                return;
             }
-            WriteResult res = response.build();
-            responseObserver.onNext(res);
-            responseObserver.onCompleted();
+            final int end = log.size();
+            // A log of another term is replaced from the start
+            final int from = req.getTerm() == term && req.getIndex() <= end ? Math.max(0, req.getIndex()) : 0;
+            final ServerCallStreamObserver<LogRange> observer = (ServerCallStreamObserver<LogRange>) responseObserver;
+            Runnable drain = new Runnable() {
+                private final HashSet<String> sent = new HashSet<String>();
+                private int next = from;
+                private boolean first = true; // goes out even if empty, for the term
+                private boolean done = false;
+
+                @Override
+                public synchronized void run() {
+                    if (done) {
+                        return;
+                    }
+                    while ((next < end || first) && observer.isReady() && !observer.isCancelled()) {
+                        first = false;
+                        LogRange.Builder chunk = LogRange.newBuilder().setTerm(term).setFirstIndex(next);
+                        int bytes = 0;
+                        for (String filename : log.getRange(next, Math.min(end, next + CATCH_UP_NAMES))) {
+                            if (MetadataReplicator.BATCH_BYTES <= bytes) {
+                                break;
+                            }
+                            chunk.addFilenames(filename);
+                            bytes += filename.length() + 2;
+                            FileRecord file = files.get(filename);
+                            if (file != null && sent.add(filename)) {
+                                FileInfo info = file.toFileInfo(filename);
+                                chunk.addFiles(info);
+                                bytes += info.getSerializedSize() + 4;
+                            }
+                        }
+                        next += chunk.getFilenamesCount();
+                        observer.onNext(chunk.build());
+                    }
+                    if (end <= next && !first || observer.isCancelled()) {
+                        done = true;
+                        if (!observer.isCancelled()) {
+                            observer.onCompleted();
+                        }
+                    }
+                }
+            };
+            observer.setOnReadyHandler(drain);
+            drain.run(); // the stream may already be ready, in which case no callback comes
         }
 
-        public void append(FileInfo req, final StreamObserver<Empty> responseObserver)
+        // Changes one file on the leader. "change" gets the current record,
+        // null for an unknown file, and returns the next one, or the current
+        // one to leave the file as it is. It runs while no other change to
+        // the file does, so what it checked still holds when the record is
+        // replaced. Changes are logged in the order they are made, stored
+        // and sent to the followers. Returns the record now current, once
+        // a majority of the servers has it.
+        private FileRecord commit(String filename, final BiFunction<String, FileRecord, FileRecord> change)
+                throws IOException
         {
-            if(!m_crash)
+            final FileRecord[] before = new FileRecord[1];
+            final FileRecord[] next = new FileRecord[1];
+            final int[] index = {-1};
+            FileRecord after;
+            try
             {
-                logVector.add(req.getFilename());
-                fileStorage.put(req.getFilename(), new Vector<String>());
-                for(int i=0; i < req.getBlocklistCount(); ++i)
+                after = files.update(filename, new BiFunction<String, FileRecord, FileRecord>() {
+                    @Override
+                    public FileRecord apply(String filename, FileRecord current) {
+                        before[0] = current;
+                        next[0] = change.apply(filename, current);
+                        if (next[0] != current) {
+                            index[0] = log.append(filename, next[0]);
+                            if (replicator != null) {
+                                replicator.send(); // the followers store it while the leader does
+                            }
+                        }
+                        return next[0];
+                    }
+                });
+            }
+            catch(IOException e)
+            {
+                if(next[0] != before[0] && files.get(filename) != next[0] && blockReferences != null)
                 {
-                    fileStorage.get(req.getFilename()).add(req.getBlocklist(i));
+                    // The change could not be stored; its blocks are not referenced after all
+                    blockReferences.update(next[0].getBlocks(),
+                            before[0] == null ? Collections.<String>emptyList() : before[0].getBlocks());
                 }
-                versionStorage.put(req.getFilename(), req.getVersion());
+                throw e;
             }
-            responseObserver.onNext(Empty.newBuilder().build());
-            responseObserver.onCompleted();
+            if(0 <= index[0])
+            {
+                replicate(index[0]);
+            }
+            return after;
         }
 
-        public void restore(Empty req, final StreamObserver<Empty> responseObserver) // on a follower side
+        // Waits until a majority of the servers has the entry at "index";
+        // the other followers get it in the background. If too few are up,
+        // the change stays on the leader and is sent once they are back.
+        private void replicate(int index) throws IOException
         {
-            if(m_crash == false)
+            if(replicator == null)
             {
-                responseObserver.onNext(Empty.newBuilder().build());
-                responseObserver.onCompleted();
+                return;
             }
-            Empty response = Empty.newBuilder().build();
-            Index vectorSize = leaderStub.getVectorSize(response);
-            HashMap<String, Integer> tempMap = new HashMap<String, Integer>();
-            for(int i=this.logVector.size(); i < vectorSize.getIndex(); ++i) // Make the log vector up-to-date
+            boolean accepted;
+            try
             {
-                Index.Builder myIndex = Index.newBuilder();
-                FileInfo tempInfo = leaderStub.getLogName(myIndex.setIndex(i).build());
-                logVector.add(tempInfo.getFilename());
-                tempMap.put(tempInfo.getFilename(), 0);
+                accepted = replicator.await(index);
             }
-            for(String key : tempMap.keySet()) // Make the hash list up-to-date
+            catch(InterruptedException e)
             {
-                FileInfo sendInfo = FileInfo.newBuilder().setFilename(key).build();
-                FileInfo tempInfo = leaderStub.sendUpdate(sendInfo);
-                fileStorage.put(key, new Vector<String>());
-                for(int i=0; i < tempInfo.getBlocklistCount(); ++i)
-                {
-                    fileStorage.get(key).add(tempInfo.getBlocklist(i));
-                }
-                versionStorage.put(key, tempInfo.getVersion());
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replicating " + log.get(index));
+            }
+            log.trim(replicator.getMatchIndex());
+            if(!accepted)
+            {
+                throw new IOException("Too few followers are up to accept the change to " + log.get(index));
             }
-            m_crash = false;
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
         }
 
-        public void sendUpdate(FileInfo req, final StreamObserver<FileInfo> responseObserver) // on a leader side 
+        // Changes to one file may reach a follower out of order; the record
+        // with the higher version stays
+        private static BiFunction<String, FileRecord, FileRecord> newer(final FileRecord file)
         {
-            FileInfo.Builder response = FileInfo.newBuilder();
-            response.setFilename(req.getFilename());
-            response.setVersion(versionStorage.get(req.getFilename()));
-            response.addAllBlocklist(fileStorage.get(req.getFilename()));
-            responseObserver.onNext(response.build());
-            responseObserver.onCompleted();
+            return new BiFunction<String, FileRecord, FileRecord>() {
+                @Override
+                public FileRecord apply(String filename, FileRecord current) {
+                    return current == null || current.getVersion() < file.getVersion() ? file : current;
+                }
+            };
         }
 
-        public void getLogName(Index req, final StreamObserver<FileInfo> responseObserver) // sending a corresponding file name
+        // What the leader has replaces what a follower of another term has
+        private static BiFunction<String, FileRecord, FileRecord> replaced(final FileRecord file)
         {
-            FileInfo.Builder response = FileInfo.newBuilder();
-            response.setFilename(logVector.get(req.getIndex()));
-            responseObserver.onNext(response.build());
-            responseObserver.onCompleted();
+            return new BiFunction<String, FileRecord, FileRecord>() {
+                @Override
+                public FileRecord apply(String filename, FileRecord current) {
+                    return file;
+                }
+            };
+        }
+
+        // As far as the leader knows from replicating; no follower is asked
+        private boolean hasQuorum()
+        {
+            return replicator == null || replicator.hasQuorum();
         }
 
         public void getVectorSize(Empty req, final StreamObserver<Index> responseObserver) // on a follower side
         {
             Index.Builder response = Index.newBuilder();
-            response.setIndex(logVector.size());
+            response.setIndex(log.size());
             responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
@@ -515,23 +992,3 @@ public final class MetadataStore
 
 
 
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
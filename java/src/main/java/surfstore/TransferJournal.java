@@ -0,0 +1,199 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Checkpoints of a transfer that may not finish in one run: the blocks
+ * already done, so that a restarted client carries on from there instead
+ * of starting over.
+ *
+ * The journal starts with a key naming what is transferred, such as a
+ * file's version and blocklist, and is only appended to after that. What
+ * was recorded under another key belongs to a transfer nobody wants any
+ * more and is thrown away. A block is recorded only once its data is
+ * stored for good, so a crash loses the blocks since the last checkpoint
+ * and nothing else; a record torn by the crash is dropped.
+ *
+ * Recording is best effort: if the journal cannot be written, the transfer
+ * goes on but cannot be resumed.
+ */
+public final class TransferJournal
+{
+    private static final Logger logger = Logger.getLogger(TransferJournal.class.getName());
+    private static final int JOURNAL_MAGIC = 0x5352464a;
+
+    private final File file;
+    private final String key;
+    private FileBlocks blocks = new FileBlocks(); // recorded by earlier runs
+    private FileChannel channel; // opened by the first record of this run
+    private long length; // of the journal up to its last whole record, 0 to start over
+    private boolean recorded;
+    private boolean failed;
+
+    private TransferJournal(File file, String key)
+    {
+        this.file = file;
+        this.key = key;
+    }
+
+    // Opens the journal in "file" for the transfer named by "key"
+    public static TransferJournal open(File file, String key)
+    {
+        TransferJournal journal = new TransferJournal(file, key);
+        try
+        {
+            journal.load();
+        }
+        catch(FileNotFoundException | EOFException e)
+        {
+            journal.reset();
+        }
+        catch(IOException e)
+        {
+            logger.log(Level.WARNING, "Could not read journal " + file + ", starting over", e);
+            journal.reset();
+        }
+        return journal;
+    }
+
+    // The blocks earlier runs recorded, in the order they were recorded
+    public FileBlocks getBlocks()
+    {
+        return blocks;
+    }
+
+    // True if no run has recorded anything to resume from
+    public synchronized boolean isEmpty()
+    {
+        return blocks.size() == 0 && !recorded;
+    }
+
+    // Forgets everything recorded so far
+    public synchronized void reset()
+    {
+        blocks = new FileBlocks();
+        length = 0;
+        recorded = false;
+    }
+
+    // Records blocks "from" to "to" of "done". Their data must already be
+    // stored for good.
+    public synchronized void record(FileBlocks done, int from, int to)
+    {
+        if(failed || from == to)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if(length == 0)
+            {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeUTF(key);
+            }
+            for(int i=from; i < to; ++i)
+            {
+                byte[] hash = Base64.getDecoder().decode(done.getHash(i));
+                out.writeLong(done.getOffset(i));
+                out.writeByte(hash.length);
+                out.write(hash);
+                out.writeInt(done.getLength(i));
+            }
+            out.flush();
+            if(channel == null)
+            {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            if(channel.size() != length)
+            {
+                channel.truncate(length); // a torn record, or the records of another transfer
+            }
+            ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+            while(data.hasRemaining())
+            {
+                length += channel.write(data, length);
+            }
+            recorded = true;
+        }
+        catch(IOException | IllegalArgumentException e)
+        {
+            logger.warning("Could not write journal " + file + ", the transfer cannot be resumed: " + e.getMessage());
+            failed = true;
+        }
+    }
+
+    public synchronized void close()
+    {
+        if(channel == null)
+        {
+            return;
+        }
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+        }
+        channel = null;
+    }
+
+    // Once the transfer is complete, or not worth resuming
+    public synchronized void delete()
+    {
+        close();
+        file.delete();
+        reset();
+    }
+
+    private void load() throws IOException
+    {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        try
+        {
+            if(in.readInt() != JOURNAL_MAGIC || !key.equals(in.readUTF()))
+            {
+                return;
+            }
+            length = counter.getCount();
+            try
+            {
+                while(true)
+                {
+                    long offset = in.readLong();
+                    byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    int blockLength = in.readInt();
+                    blocks.add(Base64.getEncoder().encodeToString(hash), offset, blockLength);
+                    length = counter.getCount();
+                }
+            }
+            catch(EOFException e)
+            {
+                // the end, or a record the last run did not finish
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import surfstore.BlockStorage.StoredBlock;
+import surfstore.SurfStoreBasic.Compression;
+
+/**
+ * Blocks come back as they went in while the cache churns, and its direct
+ * memory stays within the capacity.
+ */
+public class BlockCacheTest
+{
+    private static final long CAPACITY = 4L * 1024 * 1024;
+
+    private static ByteString block(int number, int size)
+    {
+        byte[] data = new byte[size];
+        new Random(number).nextBytes(data);
+        return ByteString.copyFrom(data);
+    }
+
+    private static long directMemory()
+    {
+        for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+        {
+            if("direct".equals(pool.getName()))
+            {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void churnKeepsBlocksIntactWithinCapacity()
+    {
+        long before = directMemory();
+        BlockCache cache = new BlockCache(CAPACITY);
+        Random random = new Random(1);
+        int[] sizes = new int[5000];
+        for(int i=0; i < sizes.length; ++i)
+        {
+            sizes[i] = 1 + random.nextInt(random.nextBoolean() ? 4096 : BlockChunker.MAX_BLOCK_SIZE / 4);
+            cache.put("block" + i, new StoredBlock(block(i, sizes[i]), Compression.DEFLATE_FAST));
+            assertTrue(cache.getSize() <= CAPACITY);
+            // Read some recent and some older blocks, so both segments fill
+            for(int j : new int[] {i, random.nextInt(i + 1)})
+            {
+                StoredBlock cached = cache.get("block" + j);
+                if(cached != null)
+                {
+                    assertEquals(block(j, sizes[j]), cached.data);
+                    assertEquals(Compression.DEFLATE_FAST, cached.compression);
+                }
+            }
+            if(i % 7 == 0)
+            {
+                cache.invalidate("block" + random.nextInt(i + 1));
+            }
+        }
+        assertTrue(0 < cache.getEvictions());
+        assertTrue(directMemory() - before <= CAPACITY);
+    }
+
+    @Test
+    public void invalidatedBlocksAreGone()
+    {
+        BlockCache cache = new BlockCache(CAPACITY);
+        cache.put("a", new StoredBlock(block(1, 1000), Compression.NONE));
+        assertNotNull(cache.get("a"));
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void blocksTooLargeForProbationAreNotCached()
+    {
+        BlockCache cache = new BlockCache(1024 * 1024);
+        cache.put("a", new StoredBlock(block(1, 512 * 1024), Compression.NONE));
+        assertNull(cache.get("a"));
+    }
+}
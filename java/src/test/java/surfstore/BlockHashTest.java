@@ -0,0 +1,112 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Names of either hash algorithm have to spread evenly over the ring of
+ * block servers and over the bits of the Bloom filter.
+ */
+public class BlockHashTest
+{
+    private static final int BLOCKS = 20000;
+
+    private static String randomName(BlockHash hash, Random random)
+    {
+        byte[] data = new byte[64];
+        random.nextBytes(data);
+        return hash.name(ByteBuffer.wrap(data));
+    }
+
+    private static void checkRing(BlockHash hash)
+    {
+        BlockCluster cluster = new BlockCluster(new ConfigReader(
+                "M: 1\nL: 1\nmetadata1: 8392\nblock1: 7183\nblock2: 7184\n"));
+        try
+        {
+            Random random = new Random(1);
+            int[] counts = new int[cluster.size() + 1];
+            for(int i=0; i < BLOCKS; ++i)
+            {
+                ++counts[cluster.nodeFor(randomName(hash, random))];
+            }
+            for(int node=1; node <= cluster.size(); ++node)
+            {
+                assertTrue(hash + " gives block" + node + " " + counts[node] + " of " + BLOCKS + " blocks",
+                        BLOCKS * 0.4 < counts[node] && counts[node] < BLOCKS * 0.6);
+            }
+            cluster.shutdown();
+        }
+        catch(InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void checkFilter(BlockHash hash)
+    {
+        Random random = new Random(2);
+        BlockFilter filter = new BlockFilter(0.01);
+        for(int i=0; i < BLOCKS; ++i)
+        {
+            filter.add(BlockIndex.decodeHash(randomName(hash, random)));
+        }
+        int falsePositives = 0;
+        for(int i=0; i < BLOCKS; ++i)
+        {
+            if(filter.mightContain(BlockIndex.decodeHash(randomName(hash, random))))
+            {
+                ++falsePositives;
+            }
+        }
+        assertTrue(hash + " has " + falsePositives + " false positives in " + BLOCKS,
+                falsePositives < BLOCKS * 0.02);
+    }
+
+    @Test
+    public void sha256SpreadsOverTheRing()
+    {
+        checkRing(BlockHash.SHA256);
+    }
+
+    @Test
+    public void sha512_256SpreadsOverTheRing()
+    {
+        checkRing(BlockHash.SHA512_256);
+    }
+
+    @Test
+    public void sha256SpreadsOverTheFilter()
+    {
+        checkFilter(BlockHash.SHA256);
+    }
+
+    @Test
+    public void sha512_256SpreadsOverTheFilter()
+    {
+        checkFilter(BlockHash.SHA512_256);
+    }
+
+    @Test
+    public void namesMatchTheirBlocks()
+    {
+        Random random = new Random(3);
+        for(BlockHash hash : new BlockHash[] {BlockHash.SHA256, BlockHash.SHA512_256})
+        {
+            for(int i=0; i < 1000; ++i)
+            {
+                byte[] data = new byte[64];
+                random.nextBytes(data);
+                String name = hash.name(ByteBuffer.wrap(data));
+                assertEquals(44, name.length());
+                assertTrue(BlockHash.matches(name, ByteBuffer.wrap(data)));
+                data[0] ^= 1;
+                assertTrue(!BlockHash.matches(name, ByteBuffer.wrap(data)));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+import org.junit.Test;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * Times how long a MetadataStore takes to load its files on a restart: a
+ * snapshot of "files" files plus "changes" changes logged after it.
+ *
+ * Not run with the tests; run it with
+ *
+ * $ mvn test -Dtest=MetadataRecoveryBenchmark [-Dfiles=N] [-Dchanges=N] [-Dblocks=N]
+ */
+public class MetadataRecoveryBenchmark
+{
+    private static final int FILES = Integer.getInteger("files", 1000000);
+    private static final int CHANGES = Integer.getInteger("changes", 100000);
+    private static final int BLOCKS = Integer.getInteger("blocks", 2); // per file
+
+    @Test
+    public void recover() throws IOException
+    {
+        File directory = Files.createTempDirectory("surfstore-bench").toFile();
+        try
+        {
+            write(directory);
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long before = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            MetadataStorage storage = new MetadataStorage(directory);
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.gc();
+            long heap = runtime.totalMemory() - runtime.freeMemory() - before;
+            assertEquals(FILES, storage.entries().size());
+            System.out.println("Recovered " + FILES + " files and " + CHANGES + " changes in " + ms + " ms, "
+                    + heap / (1024 * 1024) + " MB of heap");
+        }
+        finally
+        {
+            for(File file : directory.listFiles())
+            {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    // Changes are written 1000 at a time, so the fsyncs do not dominate
+    private static void write(File directory) throws IOException
+    {
+        MetadataStorage storage = new MetadataStorage(directory);
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        write(storage, random, FILES, 1);
+        storage.snapshot();
+        write(storage, random, CHANGES, 2);
+        System.out.println("Wrote " + FILES + " files and " + CHANGES + " changes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    // Sets files 0 to count - 1 to a record of this version
+    private static void write(MetadataStorage storage, Random random, int count, int version) throws IOException
+    {
+        List<String> filenames = new ArrayList<String>();
+        List<BiFunction<String, FileRecord, FileRecord>> changes = new ArrayList<BiFunction<String, FileRecord, FileRecord>>();
+        for(int i=0; i < count; ++i)
+        {
+            final FileRecord record = record(random, version);
+            filenames.add("dir" + (i % 1000) + "/file" + i);
+            changes.add(new BiFunction<String, FileRecord, FileRecord>() {
+                @Override
+                public FileRecord apply(String filename, FileRecord current) {
+                    return record;
+                }
+            });
+            if(filenames.size() == 1000 || i == count - 1)
+            {
+                storage.updateAll(filenames, changes);
+                filenames.clear();
+                changes.clear();
+            }
+        }
+    }
+
+    private static FileRecord record(Random random, int version)
+    {
+        FileInfo.Builder info = FileInfo.newBuilder().setVersion(version);
+        byte[] digest = new byte[32];
+        for(int i=0; i < BLOCKS; ++i)
+        {
+            random.nextBytes(digest);
+            info.addBlocklist(Base64.getEncoder().encodeToString(digest));
+            info.addBlockSizes(4 * 1024 * 1024);
+        }
+        return FileRecord.of(info.build());
+    }
+}
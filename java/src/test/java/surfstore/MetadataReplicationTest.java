@@ -0,0 +1,268 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * A leader restarted from its data directory has to bring its followers
+ * to its own files, whether they kept running with more log entries than
+ * it recovered or started afresh with fewer.
+ *
+ * The servers run as processes of their own, as the MetadataStore keeps
+ * its role in static fields.
+ */
+public class MetadataReplicationTest
+{
+    private static final int BLOCK_PORT = 17288;
+    private static final int[] METADATA_PORTS = {18491, 18492, 18493};
+    private static final int FILES = 20;
+    private static final long TIMEOUT = 30000;
+
+    private File directory;
+    private File config;
+    private final Map<String, Process> servers = new HashMap<String, Process>();
+    private final List<ManagedChannel> channels = new ArrayList<ManagedChannel>();
+    private MetadataStoreGrpc.MetadataStoreBlockingStub[] metadata;
+    private String block;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("surfstore-test").toFile();
+        config = new File(directory, "config.txt");
+        Files.write(config.toPath(), ("M: 3\nL: 1\nmetadata1: " + METADATA_PORTS[0] + "\nmetadata2: " + METADATA_PORTS[1]
+                + "\nmetadata3: " + METADATA_PORTS[2] + "\nblock: " + BLOCK_PORT + "\n").getBytes("UTF-8"));
+        metadata = new MetadataStoreGrpc.MetadataStoreBlockingStub[METADATA_PORTS.length];
+        for(int i=0; i < METADATA_PORTS.length; ++i)
+        {
+            metadata[i] = MetadataStoreGrpc.newBlockingStub(channel(METADATA_PORTS[i]));
+        }
+
+        start("block", "surfstore.BlockStore", config.getPath());
+        BlockStoreGrpc.BlockStoreBlockingStub blockStub = BlockStoreGrpc.newBlockingStub(channel(BLOCK_PORT));
+        awaitStarted(blockStub);
+        byte[] data = "contents".getBytes("UTF-8");
+        block = BlockHash.SHA256.name(ByteBuffer.wrap(data));
+        blockStub.storeBlock(Block.newBuilder().setHash(block).setData(ByteString.copyFrom(data)).build());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for(Process server : servers.values())
+        {
+            server.destroy();
+            server.waitFor();
+        }
+        for(ManagedChannel channel : channels)
+        {
+            channel.shutdownNow();
+        }
+        delete(directory);
+    }
+
+    @Test
+    public void restartedLeaderBringsFollowersToItsFiles() throws Exception
+    {
+        startMetadata(2);
+        startMetadata(3);
+        startMetadata(1);
+
+        // 40 log entries on every server
+        for(int version=1; version <= 2; ++version)
+        {
+            for(int i=0; i < FILES; ++i)
+            {
+                write(i, version);
+            }
+        }
+        // and 10 more on the leader and the follower that keeps running
+        stop("metadata3");
+        for(int i=0; i < FILES / 2; ++i)
+        {
+            write(i, 3);
+        }
+
+        // The leader recovers one log entry per file, fewer than metadata2
+        // has; metadata3 comes back with none
+        stop("metadata1");
+        startMetadata(1);
+        startMetadata(3);
+        for(int i=0; i < FILES / 4; ++i)
+        {
+            write(i, 4);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        List<Integer> expected = new ArrayList<Integer>();
+        for(int i=0; i < FILES; ++i)
+        {
+            expected.add(i < FILES / 4 ? 4 : i < FILES / 2 ? 3 : 2);
+        }
+        for(int server=0; server < metadata.length; ++server)
+        {
+            while(!expected.equals(versions(server)) && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(100);
+            }
+            assertEquals("versions on metadata" + (server + 1), expected, versions(server));
+        }
+    }
+
+    // Retries while the leader waits for its followers to catch up. A write
+    // that did not reach a majority stays on the leader, so a retry may find
+    // it there.
+    private void write(int file, int version) throws InterruptedException
+    {
+        FileInfo info = FileInfo.newBuilder().setFilename("file" + file).setVersion(version).addBlocklist(block).build();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        WriteResult.Result result;
+        do
+        {
+            try
+            {
+                WriteResult answer = metadata[0].withDeadlineAfter(5, TimeUnit.SECONDS).modifyFile(info);
+                result = answer.getResult();
+                if(result == WriteResult.Result.OLD_VERSION && answer.getCurrentVersion() == version)
+                {
+                    result = WriteResult.Result.OK;
+                }
+            }
+            catch(StatusRuntimeException e)
+            {
+                result = null;
+            }
+            if(result != WriteResult.Result.OK)
+            {
+                Thread.sleep(100);
+            }
+        }
+        while(result != WriteResult.Result.OK && System.currentTimeMillis() < deadline);
+        assertEquals("writing version " + version + " of file" + file, WriteResult.Result.OK, result);
+    }
+
+    private List<Integer> versions(int server)
+    {
+        List<Integer> versions = new ArrayList<Integer>();
+        for(int i=0; i < FILES; ++i)
+        {
+            versions.add(metadata[server].getVersion(FileInfo.newBuilder().setFilename("file" + i).build()).getVersion());
+        }
+        return versions;
+    }
+
+    private void startMetadata(int number) throws Exception
+    {
+        List<String> args = new ArrayList<String>();
+        args.add(config.getPath());
+        args.add("-n");
+        args.add(Integer.toString(number));
+        if(number == 1)
+        {
+            args.add("--data_dir");
+            args.add(new File(directory, "metadata1").getPath());
+        }
+        start("metadata" + number, "surfstore.MetadataStore", args.toArray(new String[args.size()]));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(true)
+        {
+            try
+            {
+                metadata[number - 1].withDeadlineAfter(1, TimeUnit.SECONDS).isCrashed(Empty.newBuilder().build());
+                return;
+            }
+            catch(StatusRuntimeException e)
+            {
+                if(deadline < System.currentTimeMillis())
+                {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void start(String name, String mainClass, String... args) throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        for(String arg : args)
+        {
+            command.add(arg);
+        }
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(directory, name + ".log")));
+        servers.put(name, builder.start());
+    }
+
+    private void stop(String name) throws InterruptedException
+    {
+        Process server = servers.remove(name);
+        server.destroy();
+        server.waitFor();
+    }
+
+    private void awaitStarted(BlockStoreGrpc.BlockStoreBlockingStub stub) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(true)
+        {
+            try
+            {
+                stub.withDeadlineAfter(1, TimeUnit.SECONDS).ping(Empty.newBuilder().build());
+                return;
+            }
+            catch(StatusRuntimeException e)
+            {
+                if(deadline < System.currentTimeMillis())
+                {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private ManagedChannel channel(int port)
+    {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext(true).build();
+        channels.add(channel);
+        return channel;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,218 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * A MetadataStorage reopened on its directory has to come back with every
+ * change that reached the disk, whatever point a crash stopped it at.
+ */
+public class MetadataStorageTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("surfstore-test").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(directory);
+    }
+
+    @Test
+    public void tornLastRecordIsDropped() throws IOException
+    {
+        MetadataStorage storage = new MetadataStorage(directory);
+        set(storage, "a", record(1));
+        set(storage, "b", record(1));
+        long whole = segment(1).length();
+        set(storage, "a", record(2));
+        // The crash came halfway through writing the last record
+        truncate(segment(1), whole + (segment(1).length() - whole) / 2);
+
+        storage = new MetadataStorage(directory);
+        assertEquals(1, storage.get("a").getVersion());
+        assertEquals(1, storage.get("b").getVersion());
+        assertEquals(whole, segment(1).length());
+
+        // Later changes go after the last whole record, where a replay finds them
+        set(storage, "c", record(1));
+        storage = new MetadataStorage(directory);
+        assertEquals(1, storage.get("a").getVersion());
+        assertEquals(1, storage.get("c").getVersion());
+        assertEquals(3, storage.entries().size());
+    }
+
+    @Test
+    public void snapshotAndLaterSegmentsAreBothLoaded() throws IOException
+    {
+        MetadataStorage storage = new MetadataStorage(directory);
+        FileRecord b = record(1);
+        set(storage, "a", record(1));
+        set(storage, "b", b);
+        storage.snapshot();
+        FileRecord a = record(2);
+        set(storage, "a", a);
+        set(storage, "c", record(1));
+        storage.snapshot();
+        set(storage, "c", FileRecord.deleted(2));
+        assertEquals(Arrays.asList("metadata-00000003.log", "snapshot-00000003.snap"), names());
+
+        storage = new MetadataStorage(directory);
+        assertEquals(a.getBlocks(), storage.get("a").getBlocks());
+        assertEquals(a.getSizes(), storage.get("a").getSizes());
+        assertEquals(b.getBlocks(), storage.get("b").getBlocks());
+        assertEquals(2, storage.get("c").getVersion());
+        assertTrue(storage.get("c").isDeleted());
+        assertEquals(3, storage.entries().size());
+    }
+
+    @Test
+    public void segmentsLeftBehindBySnapshotAreDeletedOnRecovery() throws IOException
+    {
+        MetadataStorage storage = new MetadataStorage(directory);
+        set(storage, "a", record(1));
+        set(storage, "b", record(1));
+        set(storage, "a", record(2));
+        byte[] old = Files.readAllBytes(segment(1).toPath());
+        storage.snapshot();
+        set(storage, "b", record(2));
+        // The crash came after the snapshot was renamed into place, before
+        // the segment it covers was deleted
+        Files.write(segment(1).toPath(), old);
+
+        storage = new MetadataStorage(directory);
+        assertEquals(2, storage.get("a").getVersion());
+        assertEquals(2, storage.get("b").getVersion());
+        assertEquals(Arrays.asList("metadata-00000002.log", "snapshot-00000002.snap"), names());
+
+        set(storage, "c", record(1));
+        storage = new MetadataStorage(directory);
+        assertEquals(3, storage.entries().size());
+        assertEquals(1, storage.get("c").getVersion());
+    }
+
+    @Test
+    public void failedLogRefusesAllLaterChanges() throws Exception
+    {
+        MetadataStorage storage = new MetadataStorage(directory);
+        set(storage, "a", record(1));
+        Field channel = MetadataStorage.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel)channel.get(storage)).close();
+        try
+        {
+            set(storage, "a", record(2));
+            fail("A change was made although the log could not be written");
+        }
+        catch(IOException e)
+        {
+        }
+        assertEquals(1, storage.get("a").getVersion());
+
+        // The log can be written again, but the change it lost may have
+        // been answered by then
+        channel.set(storage, FileChannel.open(segment(1).toPath(), StandardOpenOption.WRITE));
+        try
+        {
+            set(storage, "b", record(1));
+            fail("A change was made after the log failed");
+        }
+        catch(IOException e)
+        {
+        }
+        assertNull(storage.get("b"));
+        storage.snapshot();
+        assertEquals(Arrays.asList("metadata-00000001.log"), names());
+        ((FileChannel)channel.get(storage)).close();
+
+        storage = new MetadataStorage(directory);
+        assertEquals(1, storage.get("a").getVersion());
+        assertEquals(1, storage.entries().size());
+    }
+
+    private static FileRecord record(int version)
+    {
+        Random random = new Random(version);
+        FileInfo.Builder info = FileInfo.newBuilder().setVersion(version);
+        byte[] digest = new byte[32];
+        for(int i=0; i < 3; ++i)
+        {
+            random.nextBytes(digest);
+            info.addBlocklist(Base64.getEncoder().encodeToString(digest));
+            info.addBlockSizes(4096 + i);
+        }
+        return FileRecord.of(info.build());
+    }
+
+    private static void set(MetadataStorage storage, String filename, final FileRecord record) throws IOException
+    {
+        storage.update(filename, new BiFunction<String, FileRecord, FileRecord>() {
+            @Override
+            public FileRecord apply(String filename, FileRecord current) {
+                return record;
+            }
+        });
+    }
+
+    private File segment(int id)
+    {
+        return new File(directory, String.format("metadata-%08d.log", id));
+    }
+
+    private List<String> names()
+    {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static void truncate(File file, long length) throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            out.setLength(length);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}